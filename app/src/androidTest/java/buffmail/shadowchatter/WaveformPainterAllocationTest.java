@@ -0,0 +1,77 @@
+package buffmail.shadowchatter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+
+import buffmail.shadowchatter.soundfile.GainNormalizer;
+
+// Checks that drawing a frame of the waveform (Cf. WaveformView.Painter) allocates nothing once
+// the buffers and the timecodes of what is visible exist, so that scrolling or playing never
+// triggers the garbage collector.
+@RunWith(AndroidJUnit4.class)
+public class WaveformPainterAllocationTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_FRAME = 1024;
+    private static final int DURATION_SECS = 20 * 60;
+    private static final double CHUNK_SECS = 3.0;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 400;
+    // Pixels scrolled between two frames, and number of frames drawn.
+    private static final int SCROLL_STEP = 7;
+    private static final int NUM_DRAWN_FRAMES = 300;
+
+    @SuppressWarnings("deprecation")  // Allocation counting still works on ART.
+    @Test
+    public void steadyStateFramesDontAllocate() {
+        final int numFrames = DURATION_SECS * SAMPLE_RATE / SAMPLES_PER_FRAME;
+        byte[] heights = new byte[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            heights[i] = (byte)((i * 37) % (GainNormalizer.MAX_HEIGHT + 1));
+        }
+        PeakPyramid peaks = new PeakPyramid(heights, numFrames);
+        peaks.buildLevels(1 / WaveformView.MIN_ZOOM);
+
+        double[] boundarySecs = new double[(int)(DURATION_SECS / CHUNK_SECS) + 1];
+        for (int i = 0; i < boundarySecs.length; i++) {
+            boundarySecs[i] = i * CHUNK_SECS;
+        }
+
+        WaveformView.Painter painter = new WaveformView.Painter(peaks,
+                new ChunkArray(boundarySecs), SAMPLE_RATE, SAMPLES_PER_FRAME, 2.0f,
+                new Paint(), new Paint(), new Paint(), new Paint());
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        WaveformTiles.Buffers buffers = new WaveformTiles.Buffers();
+        Paint selectedPaint = new Paint();
+
+        // The same frames are drawn first to build the timecodes and grow the buffers.
+        drawFrames(painter, canvas, buffers, selectedPaint);
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            drawFrames(painter, canvas, buffers, selectedPaint);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals("Allocations while drawing " + NUM_DRAWN_FRAMES + " frames",
+                0, Debug.getThreadAllocCount());
+    }
+
+    // Draw frames scrolling through the waveform, with a selection, like WaveformView does.
+    private static void drawFrames(WaveformView.Painter painter, Canvas canvas,
+                                   WaveformTiles.Buffers buffers, Paint selectedPaint) {
+        for (int frame = 0; frame < NUM_DRAWN_FRAMES; frame++) {
+            final int start = frame * SCROLL_STEP;
+            painter.paint(canvas, start, WIDTH, HEIGHT, 1.0, buffers);
+            painter.drawColumns(canvas, start, WIDTH / 4, WIDTH / 2, HEIGHT, 1.0, buffers,
+                    selectedPaint);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package buffmail.shadowchatter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Moves chunk boundaries to the quietest point around them, to the sample.
+//
+// The chunks are split at frame granularity, so a boundary can be up to a frame away from the
+// pause it stands for, and playback from it may start on a breath or cut a consonant. Around
+// each boundary, within a frame on each side, the refiner looks for the short window of samples
+// with the lowest energy, then for the zero crossing nearest to the middle of that window, so
+// that playback starts without a click.
+//
+// Only the samples around a boundary are read, and only when its chunk is played: the result is
+// cached by unrefined position, which doesn't change when the chunks around it are edited.
+class BoundaryRefiner {
+    private static final double ENERGY_WINDOW_SEC = 0.005;
+
+    // Source of the samples, e.g. a SamplePlayer and the window it has loaded.
+    interface Samples {
+        // Copy up to numSamples samples (of all the channels, interleaved) from sample (in the
+        // file) into dst. Return the number of samples (per channel) copied.
+        int read(long sample, short[] dst, int numSamples);
+    }
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mSearchSamples;  // On each side of a boundary.
+    private final int mEnergyWindow;
+    private final Map<Long, Long> mRefined = new HashMap<>();
+
+    BoundaryRefiner(int sampleRate, int channels, int samplesPerFrame) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSearchSamples = samplesPerFrame;
+        mEnergyWindow = Math.max((int)(ENERGY_WINDOW_SEC * sampleRate), 1);
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    // Return the sample of the boundary at sec, refined if it was already.
+    synchronized long getSample(double sec) {
+        final long sample = toSample(sec);
+        final Long refined = mRefined.get(sample);
+        return (refined != null) ? refined : sample;
+    }
+
+    // Return the sample of the boundary at sec, refining it first if needed. The boundary is
+    // left as is (and not cached) if its samples can't all be read, e.g. at the end of the file
+    // or of the part decoded so far. May be called from any thread.
+    long refine(double sec, Samples samples) {
+        final long sample = toSample(sec);
+        synchronized (this) {
+            final Long refined = mRefined.get(sample);
+            if (refined != null)
+                return refined;
+        }
+        if (sample <= 0)
+            return sample;  // The start of the file is not moved.
+
+        final long first = Math.max(sample - mSearchSamples - mEnergyWindow, 0);
+        final int numSamples = (int)(sample + mSearchSamples + mEnergyWindow - first);
+        short[] buffer = new short[numSamples * mChannels];
+        if (samples.read(first, buffer, numSamples) != numSamples)
+            return sample;
+        final long refined = first + findQuietest(buffer, numSamples, (int)(sample - first));
+        synchronized (this) {
+            mRefined.put(sample, refined);
+        }
+        return refined;
+    }
+
+    private long toSample(double sec) {
+        return Math.round(sec * mSampleRate);
+    }
+
+    // Return the offset in buffer of the zero crossing nearest to the middle of the energy window
+    // with the lowest energy, the one nearest to center in case of a tie.
+    private int findQuietest(short[] buffer, int numSamples, int center) {
+        final int window = Math.min(mEnergyWindow, numSamples);
+        // Energy of the downmixed samples, as a running sum over the window.
+        long energy = 0;
+        for (int i = 0; i < window; ++i)
+            energy += square(getMono(buffer, i));
+        long minEnergy = energy;
+        int quietest = 0;
+        for (int i = 1; i + window <= numSamples; ++i) {
+            energy += square(getMono(buffer, i + window - 1)) - square(getMono(buffer, i - 1));
+            if (energy < minEnergy || (energy == minEnergy &&
+                    Math.abs(i + window / 2 - center) < Math.abs(quietest + window / 2 - center))) {
+                minEnergy = energy;
+                quietest = i;
+            }
+        }
+
+        final int middle = quietest + window / 2;
+        for (int distance = 0; distance <= window / 2; ++distance) {
+            if (isZeroCrossing(buffer, numSamples, middle - distance))
+                return middle - distance;
+            if (isZeroCrossing(buffer, numSamples, middle + distance))
+                return middle + distance;
+        }
+        return middle;
+    }
+
+    // Return true if the signal changes sign (or is 0) at sample i.
+    private boolean isZeroCrossing(short[] buffer, int numSamples, int i) {
+        if (i <= 0 || i >= numSamples)
+            return false;
+        final int current = getMono(buffer, i);
+        return current == 0 || (current > 0) != (getMono(buffer, i - 1) > 0);
+    }
+
+    private int getMono(short[] buffer, int i) {
+        int sum = 0;
+        for (int c = 0; c < mChannels; ++c)
+            sum += buffer[i * mChannels + c];
+        return sum;
+    }
+
+    private static long square(int value) {
+        return (long)value * value;
+    }
+}
@@ -0,0 +1,73 @@
+package buffmail.shadowchatter;
+
+import java.util.Arrays;
+
+// Immutable chunks following each other, stored as a single array of their boundaries: the
+// start of each chunk, followed by the end of the last one.
+//
+// This is how the chunks come out of splitting a file, and how they are read by the hot paths
+// (e.g. drawing the visible ones on every frame): a lookup by time is a binary search over
+// primitives, and reading a chunk doesn't go through any object. Edits go through a ChunkList
+// instead, Cf. ChunkList.toArray().
+class ChunkArray {
+    private final double[] mBoundarySecs;
+
+    // boundarySecs is not copied, and must not be modified afterwards.
+    ChunkArray(double[] boundarySecs) {
+        mBoundarySecs = boundarySecs;
+    }
+
+    // A single chunk going from startSec to endSec.
+    static ChunkArray of(double startSec, double endSec) {
+        return new ChunkArray(new double[] { startSec, endSec });
+    }
+
+    int size() {
+        return Math.max(mBoundarySecs.length - 1, 0);
+    }
+
+    double getStartSec(int index) {
+        checkIndex(index);
+        return mBoundarySecs[index];
+    }
+
+    double getEndSec(int index) {
+        checkIndex(index);
+        return mBoundarySecs[index + 1];
+    }
+
+    // Return a copy of the boundaries, Cf. ChunkList.ofBoundaries().
+    double[] getBoundarySecs() {
+        return Arrays.copyOf(mBoundarySecs, mBoundarySecs.length);
+    }
+
+    // Return the index of the last chunk starting at or before sec (0 if there is none).
+    int indexAt(double sec) {
+        return Math.max(upperBound(sec) - 1, 0);
+    }
+
+    // Return the index after the last chunk starting at or before sec. The chunks overlapping
+    // [startSec, endSec] go from indexAt(startSec) to getEndIndex(endSec) (excluded).
+    int getEndIndex(double sec) {
+        return Math.min(Math.max(upperBound(sec), 1), size());
+    }
+
+    // Return the number of boundaries (but the last one) at or before sec.
+    private int upperBound(double sec) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mBoundarySecs[middle] <= sec)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Chunk " + index + " of " + size());
+    }
+}
@@ -0,0 +1,170 @@
+package buffmail.shadowchatter;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Undo/redo history of the edits of a ChunkList. The lists share most of their nodes, so each
+// entry only costs the O(log n) nodes copied by its edit.
+//
+// The edits themselves are recorded along with the lists, so that the history can be saved
+// (Cf. ChunkSidecar) and rebuilt from the current list alone.
+class ChunkHistory {
+    private static final int MAX_UNDO = 1000;
+
+    static final int MERGE = 0;  // Chunk index merged with the previous one.
+    static final int SPLIT = 1;  // Chunk index split at newSec.
+    static final int MOVE = 2;  // Start of chunk index moved from oldSec to newSec.
+    static final int RESPLIT = 3;  // The whole list replaced (can't be saved).
+
+    static final class Edit {
+        final int mType;
+        final int mIndex;
+        final double mOldSec;  // For MERGE and MOVE, where the boundary was.
+        final double mNewSec;  // For SPLIT and MOVE, where the boundary is.
+
+        Edit(int type, int index, double oldSec, double newSec) {
+            mType = type;
+            mIndex = index;
+            mOldSec = oldSec;
+            mNewSec = newSec;
+        }
+
+        // Redo the edit on the list it was made on.
+        ChunkList apply(ChunkList chunks) {
+            switch (mType) {
+                case MERGE: return chunks.merge(mIndex);
+                case SPLIT: return chunks.split(mIndex, mNewSec);
+                case MOVE: return chunks.moveBoundary(mIndex, mNewSec);
+                default: return chunks;
+            }
+        }
+
+        // Undo the edit on the list it resulted in.
+        ChunkList revert(ChunkList chunks) {
+            switch (mType) {
+                case MERGE: return chunks.split(mIndex - 1, mOldSec);
+                case SPLIT: return chunks.merge(mIndex + 1);
+                case MOVE: return chunks.moveBoundary(mIndex, mOldSec);
+                default: return chunks;
+            }
+        }
+    }
+
+    private ChunkList mCurrent;
+    // The lists before (resp. after) the current one, most recent first, with the edits going
+    // from each of them to the next (resp. from the previous one to each of them).
+    private final ArrayDeque<ChunkList> mUndo = new ArrayDeque<>();
+    private final ArrayDeque<Edit> mUndoEdits = new ArrayDeque<>();
+    private final ArrayDeque<ChunkList> mRedo = new ArrayDeque<>();
+    private final ArrayDeque<Edit> mRedoEdits = new ArrayDeque<>();
+
+    ChunkHistory(ChunkList chunks) {
+        mCurrent = chunks;
+    }
+
+    // Rebuild the history of chunks from the saved edits, most recent first.
+    ChunkHistory(ChunkList chunks, Edit[] undoEdits, Edit[] redoEdits) {
+        mCurrent = chunks;
+        ChunkList list = chunks;
+        for (Edit edit : undoEdits) {
+            list = edit.revert(list);
+            mUndo.addLast(list);
+            mUndoEdits.addLast(edit);
+        }
+        list = chunks;
+        for (Edit edit : redoEdits) {
+            list = edit.apply(list);
+            mRedo.addLast(list);
+            mRedoEdits.addLast(edit);
+        }
+    }
+
+    ChunkList getCurrent() {
+        return mCurrent;
+    }
+
+    ChunkList merge(int index) {
+        if (index <= 0 || index >= mCurrent.size())
+            return mCurrent;
+        return apply(mCurrent.merge(index),
+                new Edit(MERGE, index, mCurrent.getStartSec(index), 0));
+    }
+
+    ChunkList split(int index, double sec) {
+        return apply(mCurrent.split(index, sec), new Edit(SPLIT, index, 0, sec));
+    }
+
+    ChunkList moveBoundary(int index, double sec) {
+        if (index <= 0 || index >= mCurrent.size())
+            return mCurrent;
+        return apply(mCurrent.moveBoundary(index, sec),
+                new Edit(MOVE, index, mCurrent.getStartSec(index), sec));
+    }
+
+    // Replace the whole list, e.g. when the file is split again with other parameters.
+    ChunkList resplit(ChunkList chunks) {
+        return apply(chunks, new Edit(RESPLIT, 0, 0, 0));
+    }
+
+    boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    ChunkList undo() {
+        if (canUndo()) {
+            mRedo.push(mCurrent);
+            mRedoEdits.push(mUndoEdits.pop());
+            mCurrent = mUndo.pop();
+        }
+        return mCurrent;
+    }
+
+    ChunkList redo() {
+        if (canRedo()) {
+            mUndo.push(mCurrent);
+            mUndoEdits.push(mRedoEdits.pop());
+            mCurrent = mRedo.pop();
+        }
+        return mCurrent;
+    }
+
+    // Return the edits which can be undone (resp. redone) from the current list, most recent
+    // first, up to the first one which can't be saved.
+    Edit[] getUndoEdits() {
+        return getSavableEdits(mUndoEdits);
+    }
+
+    Edit[] getRedoEdits() {
+        return getSavableEdits(mRedoEdits);
+    }
+
+    private static Edit[] getSavableEdits(ArrayDeque<Edit> edits) {
+        int count = 0;
+        for (Iterator<Edit> it = edits.iterator(); it.hasNext() && it.next().mType != RESPLIT; )
+            ++count;
+        Edit[] savable = new Edit[count];
+        Iterator<Edit> it = edits.iterator();
+        for (int i = 0; i < count; ++i)
+            savable[i] = it.next();
+        return savable;
+    }
+
+    private ChunkList apply(ChunkList chunks, Edit edit) {
+        if (chunks == mCurrent)
+            return mCurrent;  // Nothing changed.
+        mUndo.push(mCurrent);
+        mUndoEdits.push(edit);
+        if (mUndo.size() > MAX_UNDO) {
+            mUndo.removeLast();
+            mUndoEdits.removeLast();
+        }
+        mRedo.clear();
+        mRedoEdits.clear();
+        mCurrent = chunks;
+        return mCurrent;
+    }
+}
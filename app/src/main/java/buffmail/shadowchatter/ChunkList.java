@@ -0,0 +1,240 @@
+package buffmail.shadowchatter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Immutable list of play chunks, edited in O(log n) without copying the whole list.
+//
+// The chunks are the nodes of a treap ordered by index (each node knows the size of its subtree
+// instead of a key). Editing a list splits its tree around the edited chunks, and joins the
+// pieces back with the new chunks, copying only the nodes on the paths it goes through. The
+// new list shares all the other nodes with the old one, which stays valid: keeping the previous
+// lists around is enough to undo the edits, Cf. ChunkHistory.
+class ChunkList {
+    private static final Random sRandom = new Random();
+
+    private static final class Node {
+        final double mStartSec;
+        final double mEndSec;
+        final int mPriority;  // Higher than the ones of the children.
+        final int mSize;  // Number of chunks in the subtree.
+        final Node mLeft;
+        final Node mRight;
+
+        Node(double startSec, double endSec, int priority, Node left, Node right) {
+            mStartSec = startSec;
+            mEndSec = endSec;
+            mPriority = priority;
+            mSize = size(left) + 1 + size(right);
+            mLeft = left;
+            mRight = right;
+        }
+
+        Node withChildren(Node left, Node right) {
+            return new Node(mStartSec, mEndSec, mPriority, left, right);
+        }
+    }
+
+    private final Node mRoot;
+    private ChunkArray mArray;  // Cf. toArray(), built once needed.
+
+    private ChunkList(Node root) {
+        mRoot = root;
+    }
+
+    static ChunkList of(ChunkArray chunks) {
+        return ofBoundaries(chunks.getBoundarySecs());
+    }
+
+    // Chunks going from each boundary to the next one.
+    static ChunkList ofBoundaries(double[] boundarySecs) {
+        if (boundarySecs.length < 2)
+            return new ChunkList(null);
+        final int numChunks = boundarySecs.length - 1;
+        return new ChunkList(build(boundarySecs, Arrays.copyOfRange(boundarySecs, 1, numChunks + 1),
+                0, numChunks, 0));
+    }
+
+    // Return the start of each chunk, followed by the end of the last one (Cf. ofBoundaries()).
+    // The chunks are expected to follow each other, as edits keep them.
+    double[] getBoundarySecs() {
+        final int numChunks = size();
+        double[] boundarySecs = new double[numChunks + 1];
+        // In-order traversal, with the nodes left to visit on a stack.
+        Node[] stack = new Node[64];
+        int stackSize = 0;
+        int index = 0;
+        Node node = mRoot;
+        while (node != null || stackSize > 0) {
+            while (node != null) {
+                if (stackSize == stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stackSize);
+                stack[stackSize++] = node;
+                node = node.mLeft;
+            }
+            node = stack[--stackSize];
+            boundarySecs[index++] = node.mStartSec;
+            boundarySecs[numChunks] = node.mEndSec;
+            node = node.mRight;
+        }
+        return boundarySecs;
+    }
+
+    // Return the chunks as an array, for reading many of them. The array is built once per list,
+    // in O(n).
+    ChunkArray toArray() {
+        ChunkArray array = mArray;
+        if (array == null) {
+            // A race only builds the same (immutable) array twice.
+            array = new ChunkArray(getBoundarySecs());
+            mArray = array;
+        }
+        return array;
+    }
+
+    int size() {
+        return size(mRoot);
+    }
+
+    double getStartSec(int index) {
+        return get(index).mStartSec;
+    }
+
+    double getEndSec(int index) {
+        return get(index).mEndSec;
+    }
+
+    // Return the index of the last chunk starting at or before sec (0 if there is none).
+    int indexAt(double sec) {
+        int index = 0;
+        int base = 0;
+        Node node = mRoot;
+        while (node != null) {
+            final int nodeIndex = base + size(node.mLeft);
+            if (node.mStartSec <= sec) {
+                index = nodeIndex;
+                base = nodeIndex + 1;
+                node = node.mRight;
+            } else {
+                node = node.mLeft;
+            }
+        }
+        return index;
+    }
+
+    // Merge the chunk at index with the previous one.
+    ChunkList merge(int index) {
+        if (index <= 0 || index >= size())
+            return this;
+        Node[] left = split(mRoot, index - 1);
+        Node[] right = split(left[1], 2);
+        final Node merged = newNode(
+                getFirst(right[0]).mStartSec, getLast(right[0]).mEndSec);
+        return new ChunkList(join(join(left[0], merged), right[1]));
+    }
+
+    // Split the chunk at index in two at the given time, which must be within the chunk.
+    ChunkList split(int index, double sec) {
+        if (index < 0 || index >= size())
+            return this;
+        Node[] left = split(mRoot, index);
+        Node[] right = split(left[1], 1);
+        final Node chunk = right[0];
+        if (sec <= chunk.mStartSec || sec >= chunk.mEndSec)
+            return this;
+        final Node first = newNode(chunk.mStartSec, sec);
+        final Node second = newNode(sec, chunk.mEndSec);
+        return new ChunkList(join(join(join(left[0], first), second), right[1]));
+    }
+
+    // Move the boundary between the chunk at index and the previous one to the given time, which
+    // must be within these two chunks.
+    ChunkList moveBoundary(int index, double sec) {
+        if (index <= 0 || index >= size())
+            return this;
+        Node[] left = split(mRoot, index - 1);
+        Node[] right = split(left[1], 2);
+        final Node first = getFirst(right[0]);
+        final Node second = getLast(right[0]);
+        if (sec <= first.mStartSec || sec >= second.mEndSec)
+            return this;
+        final Node moved = join(newNode(first.mStartSec, sec), newNode(sec, second.mEndSec));
+        return new ChunkList(join(join(left[0], moved), right[1]));
+    }
+
+    private Node get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Chunk " + index + " of " + size());
+        Node node = mRoot;
+        while (true) {
+            final int leftSize = size(node.mLeft);
+            if (index < leftSize) {
+                node = node.mLeft;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.mRight;
+            }
+        }
+    }
+
+    private static int size(Node node) {
+        return (node == null) ? 0 : node.mSize;
+    }
+
+    private static Node newNode(double startSec, double endSec) {
+        return new Node(startSec, endSec, sRandom.nextInt() & Integer.MAX_VALUE, null, null);
+    }
+
+    // Balanced tree of the chunks from..to. The priorities decrease with the depth, randomly
+    // within each level, so that it is a valid treap.
+    private static Node build(final double[] startSecs, final double[] endSecs,
+                              int from, int to, int depth) {
+        if (from >= to)
+            return null;
+        final int middle = (from + to) >>> 1;
+        final int priority = ((31 - Math.min(depth, 30)) << 26) | (sRandom.nextInt() & 0x3ffffff);
+        return new Node(startSecs[middle], endSecs[middle], Math.max(priority, 0),
+                build(startSecs, endSecs, from, middle, depth + 1),
+                build(startSecs, endSecs, middle + 1, to, depth + 1));
+    }
+
+    private static Node getFirst(Node node) {
+        while (node.mLeft != null)
+            node = node.mLeft;
+        return node;
+    }
+
+    private static Node getLast(Node node) {
+        while (node.mRight != null)
+            node = node.mRight;
+        return node;
+    }
+
+    // Return the first count chunks of the tree and the others.
+    private static Node[] split(Node node, int count) {
+        if (node == null)
+            return new Node[] { null, null };
+        final int leftSize = size(node.mLeft);
+        if (count <= leftSize) {
+            Node[] parts = split(node.mLeft, count);
+            parts[1] = node.withChildren(parts[1], node.mRight);
+            return parts;
+        }
+        Node[] parts = split(node.mRight, count - leftSize - 1);
+        parts[0] = node.withChildren(node.mLeft, parts[0]);
+        return parts;
+    }
+
+    // Concatenate two trees.
+    private static Node join(Node left, Node right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (left.mPriority > right.mPriority)
+            return left.withChildren(left.mLeft, join(left.mRight, right));
+        return right.withChildren(join(left, right.mLeft), right.mRight);
+    }
+}
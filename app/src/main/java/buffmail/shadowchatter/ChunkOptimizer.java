@@ -0,0 +1,91 @@
+package buffmail.shadowchatter;
+
+import java.util.Arrays;
+
+// Chooses where to split a file among candidate silences, instead of splitting at all of them.
+//
+// Each split rewards the silence it falls in (longer and deeper is better), and each chunk costs
+// a constant plus a penalty growing with the square of how far its duration is out of
+// [minSec, maxSec]. The set of splits with the lowest total cost is found by dynamic
+// programming over the candidates in order: the best cost of a split is that of the best
+// previous split, plus the cost of the chunk in between.
+//
+// A chunk is only looked for within SEARCH_SPAN times maxSec (where its penalty has
+// long outweighed any reward), or back to the previous candidate if there is none, so the
+// running time is linear in the number of candidates for a given density of silences.
+class ChunkOptimizer {
+    private static final double CHUNK_COST = 0.25;
+    private static final double SHORT_PENALTY = 4.0;  // For a chunk of 0 sec.
+    private static final double LONG_PENALTY = 4.0;  // For a chunk of twice maxSec.
+    private static final double FULL_REWARD_SEC = 0.6;  // Longer silences are not better.
+    private static final double SEARCH_SPAN = 3.0;
+
+    // times: middle of the candidate silences, in increasing order. lengths and depths (from 0 to
+    // 1): their duration and how far below the silence threshold they go. Return the indexes of
+    // the candidates to split at, in increasing order.
+    static int[] chooseBoundaries(final double[] times, final double[] lengths,
+                                  final double[] depths, double totalSec,
+                                  double minSec, double maxSec) {
+        final int numCandidates = times.length;
+        // Splits 1 to numCandidates are the candidates, 0 and numCandidates + 1 the start and the
+        // end of the file.
+        final int numSplits = numCandidates + 2;
+        double[] costs = new double[numSplits];
+        int[] previous = new int[numSplits];
+        costs[0] = 0;
+        int first = 0;  // First split within the search span.
+        for (int j = 1; j < numSplits; ++j) {
+            final double time = (j <= numCandidates) ? times[j - 1] : totalSec;
+            while (first < j - 1 && time - getTime(times, first) > SEARCH_SPAN * maxSec)
+                ++first;
+
+            double bestCost = Double.MAX_VALUE;
+            int best = j - 1;
+            for (int i = first; i < j; ++i) {
+                final double cost = costs[i] +
+                        getPenalty(time - getTime(times, i), minSec, maxSec);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = i;
+                }
+            }
+            if (j <= numCandidates)
+                bestCost += CHUNK_COST - getReward(lengths[j - 1], depths[j - 1]);
+            costs[j] = bestCost;
+            previous[j] = best;
+        }
+
+        int[] chosen = new int[numCandidates];
+        int numChosen = 0;
+        for (int j = previous[numSplits - 1]; j > 0; j = previous[j])
+            chosen[numChosen++] = j - 1;
+        chosen = Arrays.copyOf(chosen, numChosen);
+        // Backtracking gives them from the end.
+        for (int i = 0; i < numChosen / 2; ++i) {
+            final int tmp = chosen[i];
+            chosen[i] = chosen[numChosen - 1 - i];
+            chosen[numChosen - 1 - i] = tmp;
+        }
+        return chosen;
+    }
+
+    private static double getTime(final double[] times, int split) {
+        return (split == 0) ? 0 : times[split - 1];
+    }
+
+    private static double getPenalty(double durationSec, double minSec, double maxSec) {
+        if (durationSec < minSec) {
+            final double missing = (minSec - durationSec) / minSec;
+            return SHORT_PENALTY * missing * missing;
+        }
+        if (durationSec > maxSec) {
+            final double excess = (durationSec - maxSec) / maxSec;
+            return LONG_PENALTY * excess * excess;
+        }
+        return 0;
+    }
+
+    private static double getReward(double lengthSec, double depth) {
+        return Math.min(lengthSec / FULL_REWARD_SEC, 1.0) * (0.5 + 0.5 * depth);
+    }
+}
@@ -0,0 +1,219 @@
+package buffmail.shadowchatter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import buffmail.shadowchatter.soundfile.SoundFileCache;
+
+// Per file record of its chunks: their boundaries (as sample indexes), the history of their
+// edits and the chunk the user was on, so that all of them are restored when the file is opened
+// again.
+//
+// The record is a small binary file named after the fingerprint of the audio file, which is
+// memory-mapped when opened: the boundaries are read straight from the mapping, and the current
+// chunk index is written to it in place when the user moves to another chunk. The whole file is
+// only rewritten (in the background, one edit after the other) when the chunks are edited.
+// The boundaries come with their own sample rate, so the record doesn't depend on how the file
+// is decoded (e.g. in speech mode, unlike the SoundFileCache entries).
+//
+// Must be closed once done with, Cf. close().
+class ChunkSidecar {
+    private static final String TAG = "ChunkSidecar";
+    private static final int MAGIC = 0x5343484b;  // "SCHK"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".chunks";
+    // Offsets in the header.
+    private static final int CHUNK_IDX_OFFSET = 12;
+    private static final int HEADER_SIZE = 28;
+    private static final int EDIT_SIZE = 24;
+
+    private final File mFile;
+    private int mSampleRate;  // Of the boundaries.
+    private RandomAccessFile mRandomAccessFile;
+    private volatile MappedByteBuffer mMapping;  // null if there is no valid record.
+    private volatile int mChunkIdx;
+    // Writes the records in the order they are saved, so that the last edit is the one kept.
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    private ChunkSidecar(File file) {
+        mFile = file;
+    }
+
+    // Open the record of audioFile in the given directory. The record is empty (Cf. hasChunks())
+    // if the file was never opened or if its record is invalid.
+    static ChunkSidecar open(File directory, File audioFile) throws IOException {
+        directory.mkdirs();
+        ChunkSidecar sidecar = new ChunkSidecar(
+                new File(directory, SoundFileCache.getFingerprint(audioFile) + EXTENSION));
+        sidecar.map();
+        if (sidecar.mMapping != null)
+            sidecar.mChunkIdx = sidecar.mMapping.getInt(CHUNK_IDX_OFFSET);
+        return sidecar;
+    }
+
+    boolean hasChunks() {
+        return mMapping != null;
+    }
+
+    int getChunkIdx() {
+        return mChunkIdx;
+    }
+
+    // Save the current chunk index, in place.
+    void setChunkIdx(int chunkIdx) {
+        mChunkIdx = chunkIdx;
+        final MappedByteBuffer mapping = mMapping;
+        if (mapping != null)
+            mapping.putInt(CHUNK_IDX_OFFSET, chunkIdx);
+    }
+
+    // Return the saved chunks and their edits, or null if there are none.
+    ChunkHistory getChunkHistory() {
+        final MappedByteBuffer mapping = mMapping;
+        if (mapping == null)
+            return null;
+        final int numBoundaries = mapping.getInt(16);
+        final int numUndo = mapping.getInt(20);
+        final int numRedo = mapping.getInt(24);
+        ByteBuffer view = mapping.duplicate();
+        view.position(HEADER_SIZE);
+        LongBuffer samples = view.slice().asLongBuffer();
+        double[] boundarySecs = new double[numBoundaries];
+        for (int i = 0; i < numBoundaries; ++i)
+            boundarySecs[i] = (double)samples.get(i) / mSampleRate;
+        int offset = HEADER_SIZE + 8 * numBoundaries;
+        ChunkHistory.Edit[] undoEdits = new ChunkHistory.Edit[numUndo];
+        for (int i = 0; i < numUndo; ++i, offset += EDIT_SIZE)
+            undoEdits[i] = readEdit(mapping, offset);
+        ChunkHistory.Edit[] redoEdits = new ChunkHistory.Edit[numRedo];
+        for (int i = 0; i < numRedo; ++i, offset += EDIT_SIZE)
+            redoEdits[i] = readEdit(mapping, offset);
+        return new ChunkHistory(ChunkList.ofBoundaries(boundarySecs), undoEdits, redoEdits);
+    }
+
+    // Save the current chunks of history (at sampleRate) and their edits from a background
+    // thread. The chunk lists are immutable, so the history can go on meanwhile.
+    void save(ChunkHistory history, final int sampleRate) {
+        final ChunkList chunks = history.getCurrent();
+        final ChunkHistory.Edit[] undoEdits = history.getUndoEdits();
+        final ChunkHistory.Edit[] redoEdits = history.getRedoEdits();
+        mWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    write(chunks, undoEdits, redoEdits, sampleRate);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save chunks to " + mFile + ": " + e);
+                }
+            }
+        });
+    }
+
+    // Close the record once the pending saves are written. Nothing is saved afterwards.
+    void close() {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    unmap();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close " + mFile + ": " + e);
+                }
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    private void write(ChunkList chunks, ChunkHistory.Edit[] undoEdits,
+                       ChunkHistory.Edit[] redoEdits, int sampleRate) throws IOException {
+        mSampleRate = sampleRate;
+        final double[] boundarySecs = chunks.getBoundarySecs();
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mSampleRate);
+            out.writeInt(mChunkIdx);
+            out.writeInt(boundarySecs.length);
+            out.writeInt(undoEdits.length);
+            out.writeInt(redoEdits.length);
+            for (double sec : boundarySecs)
+                out.writeLong(toSamples(sec));
+            for (ChunkHistory.Edit edit : undoEdits)
+                writeEdit(out, edit);
+            for (ChunkHistory.Edit edit : redoEdits)
+                writeEdit(out, edit);
+        } finally {
+            out.close();
+        }
+        // Only replace the previous record once the new one is complete.
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+        map();
+        // In case the user moved to another chunk meanwhile.
+        setChunkIdx(mChunkIdx);
+    }
+
+    // Map the record, or clear mMapping if there is no valid one.
+    private synchronized void map() throws IOException {
+        unmap();
+        if (!mFile.exists())
+            return;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        final long length = mRandomAccessFile.length();
+        if (length < HEADER_SIZE)
+            return;
+        MappedByteBuffer mapping = mRandomAccessFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, length);
+        if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION ||
+                mapping.getInt(8) <= 0 ||
+                length != HEADER_SIZE + 8L * mapping.getInt(16) +
+                        EDIT_SIZE * ((long)mapping.getInt(20) + mapping.getInt(24))) {
+            Log.w(TAG, "Ignoring invalid chunks " + mFile);
+            return;
+        }
+        mSampleRate = mapping.getInt(8);
+        mMapping = mapping;
+    }
+
+    // Drop the mapping and close the record. The mapped memory itself is freed with the last
+    // reference to the mapping.
+    private synchronized void unmap() throws IOException {
+        mMapping = null;
+        if (mRandomAccessFile != null) {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+        }
+    }
+
+    private long toSamples(double sec) {
+        return Math.round(sec * mSampleRate);
+    }
+
+    private void writeEdit(DataOutputStream out, ChunkHistory.Edit edit) throws IOException {
+        out.writeInt(edit.mType);
+        out.writeInt(edit.mIndex);
+        out.writeLong(toSamples(edit.mOldSec));
+        out.writeLong(toSamples(edit.mNewSec));
+    }
+
+    private ChunkHistory.Edit readEdit(ByteBuffer mapping, int offset) {
+        return new ChunkHistory.Edit(mapping.getInt(offset), mapping.getInt(offset + 4),
+                (double)mapping.getLong(offset + 8) / mSampleRate,
+                (double)mapping.getLong(offset + 16) / mSampleRate);
+    }
+}
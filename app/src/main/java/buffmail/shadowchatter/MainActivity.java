@@ -3,34 +3,61 @@ package buffmail.shadowchatter;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ImageButton;
+import android.widget.SeekBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import buffmail.shadowchatter.soundfile.PcmBuffer;
 import buffmail.shadowchatter.soundfile.SoundFile;
-import buffmail.shadowchatter.SoundUtil.PlayChunk;
+import buffmail.shadowchatter.soundfile.SoundFileCache;
 
 public class MainActivity extends Activity
         implements WaveformView.WaveformListener {
 
     private final String TAG = "MainActivity";
-    private final String PLAYCHUNK_IDX_KEY = "PLAYCHUNK_IDX_KEY";
+    private final String CHUNKS_DIRECTORY = "chunks";
+    private final String SILENCE_THRESHOLD_KEY = "SILENCE_THRESHOLD_KEY";
+    // The silence threshold slider goes from 0 to SilenceIndex.MAX_THRESHOLD in that many steps.
+    private final int SILENCE_THRESHOLD_STEPS = 100;
+    // Chunks are split at the silences which keep them within these durations when possible.
+    private final double MIN_CHUNK_SEC = 2.0;
+    private final double MAX_CHUNK_SEC = 15.0;
+    private final long DECODE_CACHE_SIZE = 1024L * 1024 * 1024;  // 1GB of decoded PCM.
+    private final int SPEECH_SAMPLE_RATE = 16000;  // Plenty for speech, ~5x less than stereo 44.1kHz.
+    // Bigger files (more than an hour at 128kbps) are decoded one window at a time.
+    private final long WINDOWED_DECODE_MIN_SIZE = 64L * 1024 * 1024;
+    // Number of chunks decoded on each side of the current one for windowed files.
+    private final int WINDOW_CHUNK_MARGIN = 1;
 
     private ProgressDialog mProgressDialog;
     private long mLoadingLastUpdateTime;
+    // Cleared to cancel the loading (e.g. when the user backs out of the progress dialog). What
+    // has been decoded so far is kept in the cache, so loading the file again resumes from there.
+    private volatile boolean mLoadingKeepGoing;
+    private boolean mDestroyed;
     private SoundFile mSoundFile;
+    private SoundFileCache mSoundFileCache;
     private File mFile;
     private SamplePlayer mPlayer;
     private Handler mHandler;
     private boolean mIsPlaying;
     private WaveformView mWaveformView;
+    // Computes what mWaveformView displays, off the UI thread.
+    private WaveformLoader mWaveformLoader;
+    // Refines and stages the adjacent chunks, Cf. prefetchAdjacentChunks().
+    private final ExecutorService mPrefetcher = Executors.newSingleThreadExecutor();
 
     private float mDensity;
 
@@ -43,7 +70,23 @@ public class MainActivity extends Activity
     private int mStartPos;
     private int mEndPos;
     private int mPlayChunkIdx;
-    private PlayChunk[] mPlayChunks;
+    private ChunkList mPlayChunks;
+    private ChunkHistory mChunkHistory;  // Edits of mPlayChunks since the file was split.
+    // Where the chunks of the file, their edits and the current one are saved.
+    private ChunkSidecar mChunkSidecar;
+    // Splits the frames into chunks as they get decoded.
+    private SoundUtil.PlayChunkBuilder mPlayChunkBuilder;
+    // Splits the decoded file again when the silence threshold changes.
+    private SilenceIndex mSilenceIndex;
+    // Where the chunks actually start and end, to the sample.
+    private BoundaryRefiner mBoundaryRefiner;
+    // Cf. getPlayEndMsec(), for the chunk mPlayEndChunkIdx of mPlayEndChunks.
+    private int mPlayEndMsec;
+    private ChunkList mPlayEndChunks;
+    private int mPlayEndChunkIdx;
+    // Where the playback is, read again from mPlayer a few times a second, Cf. updateDisplay().
+    private PlaybackClock mPlaybackClock;
+    private boolean mFrameScheduled;  // Cf. mFrameCallback.
 
     private boolean mKeyDown;
 
@@ -51,10 +94,15 @@ public class MainActivity extends Activity
     private ImageButton mRewindButton;
     private ImageButton mFfwdButton;
     private ImageButton mMergeButton;
+    private ImageButton mSplitButton;
+    private ImageButton mUndoButton;
+    private SeekBar mSilenceThresholdBar;
 
     private TextView mPositionText;
 
     private Thread mLoadingSoundFileThread;
+    private Thread mLoadingWindowThread;
+    private boolean mPlayWhenWindowLoaded;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,17 +112,36 @@ public class MainActivity extends Activity
         mIsPlaying = false;
         mProgressDialog = null;
         mLoadingSoundFileThread = null;
+        mLoadingWindowThread = null;
+        mPlayWhenWindowLoaded = false;
+        mLoadingKeepGoing = false;
+        mDestroyed = false;
+        mPlaybackClock = PlaybackClock.STOPPED;
+        mFrameScheduled = false;
 
         mSoundFile = null;
         mKeyDown = false;
 
         mHandler = new Handler();
+        mWaveformLoader = new WaveformLoader();
+
+        SoundFile.setTempDirectory(getCacheDir());
+        SoundFile.setSpeechSampleRate(SPEECH_SAMPLE_RATE);
+        mSoundFileCache = new SoundFileCache(
+                new File(getCacheDir(), "decoded"), DECODE_CACHE_SIZE);
 
         mPlayChunkIdx = 0;
         mPlayChunks = null;
+        mChunkHistory = null;
+        mChunkSidecar = null;
+        mPlayChunkBuilder = null;
+        mSilenceIndex = null;
 
         loadGui();
+        showFileChooser();
+    }
 
+    private void showFileChooser() {
         FileChooser chooser = new FileChooser(this);
         chooser.setExtension(".mp3");
         chooser.setFileListener(new FileChooser.FileSelectedListener() {
@@ -88,6 +155,9 @@ public class MainActivity extends Activity
 
     @Override
     protected void onDestroy() {
+        mDestroyed = true;
+        mLoadingKeepGoing = false;
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
         if (mProgressDialog != null) {
             mProgressDialog.dismiss();
             mProgressDialog = null;
@@ -100,10 +170,37 @@ public class MainActivity extends Activity
             mPlayer.release();
             mPlayer = null;
         }
-
-        closeThread(mLoadingSoundFileThread);
+        mWaveformLoader.release();
+        mPrefetcher.shutdownNow();
+
+        // The loading threads stop at their next progress report (or once their current window
+        // is decoded). Release the sound file and the chunk record once they are done, without
+        // blocking the UI thread meanwhile. mSoundFile and mChunkSidecar may still be set by the
+        // loading thread until then.
+        final Thread loadingSoundFileThread = mLoadingSoundFileThread;
+        final Thread loadingWindowThread = mLoadingWindowThread;
+        new Thread() {
+            public void run() {
+                closeThread(loadingSoundFileThread);
+                closeThread(loadingWindowThread);
+                closeChunkSidecar();
+                if (mSoundFile != null) {
+                    mSoundFile.release();
+                    mSoundFile = null;
+                }
+            }
+        }.start();
         super.onDestroy();
     }
+
+    // Close the record of the chunks of the file, once its last edits are saved.
+    private void closeChunkSidecar() {
+        if (mChunkSidecar != null) {
+            mChunkSidecar.close();
+            mChunkSidecar = null;
+        }
+    }
+
     private void closeThread(Thread thread) {
         if (thread != null && thread.isAlive()) {
             try {
@@ -120,39 +217,93 @@ public class MainActivity extends Activity
         mProgressDialog = new ProgressDialog(MainActivity.this);
         mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
         mProgressDialog.setTitle("Loading...");
+        mProgressDialog.setCancelable(true);
+        mProgressDialog.setOnCancelListener(
+                new DialogInterface.OnCancelListener() {
+                    public void onCancel(DialogInterface dialog) {
+                        mLoadingKeepGoing = false;
+                    }
+                });
         mProgressDialog.show();
-
+        mLoadingKeepGoing = true;
+        mPlayChunks = null;
+        mChunkHistory = null;
+        closeChunkSidecar();
+        mPlayChunkBuilder = null;
+        mSilenceIndex = null;
+        mBoundaryRefiner = null;
+        mWaveformLoader.cancel();
+
+        final ProgressDialog progressDialog = mProgressDialog;
         final SoundFile.ProgressListener listener =
                 new SoundFile.ProgressListener(){
                     public boolean reportProgress(double fractionComplete) {
                         long now = getCurrentTime();
                         if (now - mLoadingLastUpdateTime > 100){
-                            mProgressDialog.setProgress(
-                                    (int)(mProgressDialog.getMax() * fractionComplete));
+                            progressDialog.setProgress(
+                                    (int)(progressDialog.getMax() * fractionComplete));
                             mLoadingLastUpdateTime = now;
                         }
-                        return true;
+                        return mLoadingKeepGoing;
+                    }
+                };
+
+        final SoundFile.DecodeListener decodeListener =
+                new SoundFile.DecodeListener() {
+                    public void onFramesDecoded(final SoundFile soundFile,
+                                                final int[] frameGains, final int numFrames,
+                                                final PcmBuffer samples) {
+                        mHandler.post(new Runnable() {
+                            public void run() {
+                                showDecodedFrames(
+                                        soundFile, frameGains, numFrames, samples);
+                            }
+                        });
                     }
                 };
 
         mLoadingSoundFileThread = new Thread() {
             public void run() {
                 try {
-                    mSoundFile = SoundFile.create(mFile.getAbsolutePath(), listener);
+                    mChunkSidecar = ChunkSidecar.open(new File(getFilesDir(), CHUNKS_DIRECTORY),
+                            mFile);
+                } catch (final Exception e) {
+                    e.printStackTrace();  // The chunks won't be saved.
+                }
+                try {
+                    if (mFile.length() >= WINDOWED_DECODE_MIN_SIZE) {
+                        mSoundFile = mSoundFileCache.openWindowed(
+                                mFile.getAbsolutePath(), listener);
+                    } else {
+                        mSoundFile = mSoundFileCache.open(
+                                mFile.getAbsolutePath(), listener, decodeListener);
+                    }
 
                     if (mSoundFile == null) {
+                        // Canceled: let the user pick a file again.
+                        mHandler.post(new Runnable() {
+                            public void run() {
+                                if (!mDestroyed) {
+                                    abortLoading();
+                                }
+                            }
+                        });
                         return;
                     }
-                    mPlayer =  new SamplePlayer(mSoundFile);
+                    // Index the silences of the whole file once, off the UI thread.
+                    mSilenceIndex = SilenceIndex.build(mSoundFile.getFrameGains(),
+                            mSoundFile.getSampleRate(), mSoundFile.getSamplesPerFrame());
                 } catch (final Exception e) {
-                    mProgressDialog.dismiss();
+                    progressDialog.dismiss();
                     e.printStackTrace();
                 }
 
-                mProgressDialog.dismiss();
+                progressDialog.dismiss();
                 mHandler.post(new Runnable() {
                     public void run() {
-                        finishOpeningSoundFile();
+                        if (!mDestroyed) {
+                            finishOpeningSoundFile();
+                        }
                     }
                 });
             }
@@ -160,55 +311,243 @@ public class MainActivity extends Activity
         mLoadingSoundFileThread.start();
     }
 
-    private void finishOpeningSoundFile() {
-        mPlayChunks = SoundUtil.GetPlayChunks(
-                mSoundFile.getFrameGains(), mSoundFile.getSampleRate(), mSoundFile.getSamplesPerFrame());
-        mWaveformView.setSoundFile(mSoundFile);
-        mWaveformView.recomputeHeights(mDensity);
-        mWaveformView.updatePlayChunks(mPlayChunks);
+    // Forget the partially decoded file after the loading was canceled, and show the file chooser
+    // again.
+    private void abortLoading() {
+        mLoadingSoundFileThread = null;
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+        if (mPlayer != null) {
+            handlePause();
+            mPlayer.release();
+            mPlayer = null;
+        }
+        mPlayChunks = null;
+        mChunkHistory = null;
+        closeChunkSidecar();
+        mPlayChunkBuilder = null;
+        showFileChooser();
+    }
 
-        mMaxPos = mWaveformView.maxPos();
+    // Display and make playable the part of the file decoded so far, while decoding goes on.
+    private void showDecodedFrames(final SoundFile soundFile, int[] frameGains, int numFrames,
+                                   PcmBuffer samples) {
+        if (mSoundFile != null || !mLoadingKeepGoing || mDestroyed) {
+            // Decoding is already done, or canceled.
+            return;
+        }
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+        }
+
+        // The frames shown so far stand for the new ones until their heights are computed.
+        if (!mWaveformView.hasSoundFile()) {
+            showPlaceholderWaveform(soundFile, frameGains, numFrames);
+        }
+        mWaveformLoader.load(frameGains, numFrames, new WaveformLoader.Callback() {
+            public void onWaveformLoaded(PeakPyramid peaks) {
+                if (mSoundFile == null && mLoadingKeepGoing && !mDestroyed) {
+                    showWaveform(soundFile, peaks);
+                }
+            }
+        });
+
+        final boolean restored = mChunkSidecar != null && mChunkSidecar.hasChunks();
+        if (!restored) {
+            if (mPlayChunkBuilder == null) {
+                mPlayChunkBuilder = new SoundUtil.PlayChunkBuilder(
+                        soundFile.getSampleRate(), soundFile.getSamplesPerFrame());
+            }
+            // Only the new frames are scanned.
+            mPlayChunkBuilder.addFrames(frameGains, numFrames);
+        }
+
+        // The same player goes on with the new samples, like with the windows of long files.
+        if (mPlayer == null) {
+            mPlayer = new SamplePlayer(samples, soundFile.getSampleRate());
+        } else {
+            mPlayer.setSamples(samples);
+        }
+        createBoundaryRefiner(soundFile);
+        if (mIsPlaying) {
+            // Keep playing the current chunk, the new frames will be used by the next one.
+            return;
+        }
+
+        if (restored) {
+            // The chunks saved the last time the file was opened.
+            if (mChunkHistory == null) {
+                mChunkHistory = mChunkSidecar.getChunkHistory();
+                mPlayChunks = mChunkHistory.getCurrent();
+            }
+        } else {
+            ChunkArray playChunks = mPlayChunkBuilder.getPlayChunks();
+            if (playChunks == null) {
+                // No silence found yet.
+                return;
+            }
+            mPlayChunks = ChunkList.of(playChunks);
+            mChunkHistory = new ChunkHistory(mPlayChunks);
+        }
+        mWaveformView.updatePlayChunks(mPlayChunks.toArray());
+        // The saved chunk may not be decoded yet. Show the last decoded one meanwhile.
+        final double decodedSec = (double)numFrames * soundFile.getSamplesPerFrame() /
+                soundFile.getSampleRate();
+        mPlayChunkIdx = Math.min(mChunkSidecar != null ? mChunkSidecar.getChunkIdx() : 0,
+                mPlayChunks.indexAt(decodedSec));
+        resetPositions();
+    }
+
+    private void finishOpeningSoundFile() {
+        boolean wasPlaying = mIsPlaying;
+        if (mPlayer != null) {
+            // The player of the partially decoded file goes on with all the samples.
+            handlePause();
+            mPlayer.setSamples(mSoundFile.getSamples());
+        } else if (!mSoundFile.isWindowed()) {
+            mPlayer = new SamplePlayer(mSoundFile);
+        }
+        createBoundaryRefiner(mSoundFile);
+
+        mPlayChunkBuilder = null;
+        // Where the user was among the chunks shown while decoding, if any.
+        final double currentSec = (mPlayChunks != null && mPlayChunkIdx < mPlayChunks.size()) ?
+                mPlayChunks.getStartSec(mPlayChunkIdx) : 0;
+        if (mChunkSidecar != null && mChunkSidecar.hasChunks()) {
+            if (mChunkHistory == null)
+                mChunkHistory = mChunkSidecar.getChunkHistory();
+            mPlayChunks = mChunkHistory.getCurrent();
+            mPlayChunkIdx = mChunkSidecar.getChunkIdx();
+        } else {
+            // The chunks of the whole file replace those found while decoding (which couldn't
+            // be edited, Cf. canEditChunks()): stay on the chunk at the same time.
+            mPlayChunks = getSilenceIndexChunks();
+            mChunkHistory = new ChunkHistory(mPlayChunks);
+            mPlayChunkIdx = mPlayChunks.indexAt(currentSec);
+            saveChunkIdx();
+            saveChunks();
+        }
+        // Whatever was decoded before stands for the whole file until its heights are computed,
+        // unless the frames are missing.
+        if (mWaveformView.getNumFrames() != mSoundFile.getNumFrames()) {
+            showPlaceholderWaveform(mSoundFile, mSoundFile.getFrameGains(),
+                    mSoundFile.getNumFrames());
+        }
+        final SoundFile soundFile = mSoundFile;
+        mWaveformLoader.load(soundFile, new WaveformLoader.Callback() {
+            public void onWaveformLoaded(PeakPyramid peaks) {
+                if (mSoundFile == soundFile && !mDestroyed) {
+                    showWaveform(soundFile, peaks);
+                }
+            }
+        });
+        mWaveformView.updatePlayChunks(mPlayChunks.toArray());
 
         mOffset = 0;
         mOffsetGoal = 0;
         mFlingVelocity = 0;
-        mPlayChunkIdx = getPreferences(Context.MODE_PRIVATE).getInt(PLAYCHUNK_IDX_KEY, 0);
         resetPositions();
         if (mEndPos > mMaxPos)
             mEndPos = mMaxPos;
+        enableDisableButtons();
+        if (wasPlaying) {
+            onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
+        }
     }
 
-    public void waveformFling(float vx) {
-        mOffsetGoal = mOffset;
-        mFlingVelocity = (int)(-vx);
+    // Show a coarse waveform of the first numFrames frames of frameGains at once, Cf.
+    // PeakPyramid.placeholder().
+    private void showPlaceholderWaveform(SoundFile soundFile, int[] frameGains, int numFrames) {
+        final boolean first = !mWaveformView.hasSoundFile();
+        mWaveformView.setPeaks(PeakPyramid.placeholder(frameGains, numFrames),
+                soundFile.getSampleRate(), soundFile.getSamplesPerFrame());
+        if (first) {
+            mWaveformView.recomputeHeights(mDensity);
+        }
+        mMaxPos = mWaveformView.maxPos();
+    }
+
+    // Swap the peaks computed by mWaveformLoader in. The zoom is kept, so positions in pixels
+    // stay valid.
+    private void showWaveform(SoundFile soundFile, PeakPyramid peaks) {
+        mWaveformView.setPeaks(peaks, soundFile.getSampleRate(), soundFile.getSamplesPerFrame());
+        mMaxPos = mWaveformView.maxPos();
         updateDisplay();
     }
 
-    public void waveformDraw() {
-        mWidth = mWaveformView.getMeasuredWidth();
-        if (mOffsetGoal != mOffset && !mKeyDown)
-            updateDisplay();
-        else if (mIsPlaying) {
-            updateDisplay();
-        } else if (mFlingVelocity != 0) {
-            updateDisplay();
+    // Boundaries refined while decoding stay valid once the file is decoded.
+    private void createBoundaryRefiner(SoundFile soundFile) {
+        if (mBoundaryRefiner == null) {
+            mBoundaryRefiner = new BoundaryRefiner(soundFile.getSampleRate(),
+                    soundFile.getChannels(), soundFile.getSamplesPerFrame());
         }
     }
 
-    public void waveformZoomIn() {
-        mWaveformView.zoomIn();
-        mStartPos = mWaveformView.getStart();
-        mEndPos = mWaveformView.getEnd();
-        mMaxPos = mWaveformView.maxPos();
-        mOffset = mWaveformView.getOffset();
+    // Split the file with the threshold of the slider.
+    private ChunkList getSilenceIndexChunks() {
+        final double threshold = SilenceIndex.MAX_THRESHOLD *
+                mSilenceThresholdBar.getProgress() / SILENCE_THRESHOLD_STEPS;
+        ChunkArray playChunks = mSilenceIndex.getOptimalPlayChunks(threshold,
+                VoiceActivityDetector.MIN_SILENCE_SEC, MIN_CHUNK_SEC, MAX_CHUNK_SEC);
+        if (playChunks == null) {
+            // No silence at this threshold: play the whole file.
+            playChunks = ChunkArray.of(0, mSilenceIndex.getDurationSec());
+        }
+        return ChunkList.of(playChunks);
+    }
+
+    private SeekBar.OnSeekBarChangeListener mSilenceThresholdListener =
+            new SeekBar.OnSeekBarChangeListener() {
+        @Override
+        public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            if (!fromUser || mSoundFile == null || mSilenceIndex == null)
+                return;
+            // Stay on the chunk being played, whatever it becomes.
+            final double currentSec = mPlayChunks.getStartSec(mPlayChunkIdx);
+            if (mIsPlaying)
+                handlePause();
+
+            // The history only gets the chunks the slider stops at, Cf. onStopTrackingTouch().
+            mPlayChunks = getSilenceIndexChunks();
+            mWaveformView.updatePlayChunks(mPlayChunks.toArray());
+            mPlayChunkIdx = mPlayChunks.indexAt(currentSec);
+            resetPositions();
+            updateDisplay();
+        }
+
+        @Override
+        public void onStartTrackingTouch(SeekBar seekBar) {
+        }
+
+        @Override
+        public void onStopTrackingTouch(SeekBar seekBar) {
+            if (canEditChunks()) {
+                mChunkHistory.resplit(mPlayChunks);
+                saveChunks();
+            }
+            SharedPreferences.Editor edit = getPreferences(Context.MODE_PRIVATE).edit();
+            edit.putInt(SILENCE_THRESHOLD_KEY, seekBar.getProgress());
+            edit.commit();
+            saveChunkIdx();
+        }
+    };
+
+    public void waveformFling(float vx) {
         mOffsetGoal = mOffset;
+        mFlingVelocity = (int)(-vx);
         updateDisplay();
     }
 
-    public void waveformZoomOut() {
-        mWaveformView.zoomOut();
+    public void waveformZoom(float scale, float focusX) {
+        mWaveformView.zoomBy(scale, focusX);
         mStartPos = mWaveformView.getStart();
         mEndPos = mWaveformView.getEnd();
+        if (mPlayChunks != null) {
+            // Without the rounding errors piling up during the gesture.
+            resetPositions();
+        }
         mMaxPos = mWaveformView.maxPos();
         mOffset = mWaveformView.getOffset();
         mOffsetGoal = mOffset;
@@ -230,6 +569,17 @@ public class MainActivity extends Activity
         mFfwdButton.setOnClickListener(mFfwdListener);
         mMergeButton = (ImageButton)findViewById(R.id.merge);
         mMergeButton.setOnClickListener(mMergeListener);
+        mSplitButton = (ImageButton)findViewById(R.id.split);
+        mSplitButton.setOnClickListener(mSplitListener);
+        mUndoButton = (ImageButton)findViewById(R.id.undo);
+        mUndoButton.setOnClickListener(mUndoListener);
+        mUndoButton.setOnLongClickListener(mRedoListener);
+        mSilenceThresholdBar = (SeekBar)findViewById(R.id.silence_threshold);
+        mSilenceThresholdBar.setMax(SILENCE_THRESHOLD_STEPS);
+        mSilenceThresholdBar.setProgress(getPreferences(Context.MODE_PRIVATE).getInt(
+                SILENCE_THRESHOLD_KEY, (int)Math.round(SILENCE_THRESHOLD_STEPS *
+                        VoiceActivityDetector.SILENCE_RATIO / SilenceIndex.MAX_THRESHOLD)));
+        mSilenceThresholdBar.setOnSeekBarChangeListener(mSilenceThresholdListener);
         mPositionText = (TextView)findViewById(R.id.position_text);
         mWaveformView = (WaveformView)findViewById(R.id.waveform);
         mWaveformView.setListener(this);
@@ -240,20 +590,41 @@ public class MainActivity extends Activity
         updateDisplay();
     }
 
-    private synchronized void updateDisplay() {
+    // Steps the scrolling on each frame while it moves, Cf. updateDisplay().
+    private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            updateDisplay(frameTimeNanos);
+        }
+    };
+
+    private void updateDisplay() {
+        updateDisplay(System.nanoTime());
+    }
+
+    // Step the scrolling by a frame (following the playback while playing), and go on stepping it
+    // on the next frames for as long as it moves. The waveform view draws on its own thread, and
+    // moves the playback cursor by itself.
+    private synchronized void updateDisplay(long frameTimeNanos) {
+        mWidth = mWaveformView.getMeasuredWidth();
         if (mIsPlaying) {
-            int now = mPlayer.getCurrentPosition();
+            if (mPlaybackClock.isStale(frameTimeNanos)) {
+                setPlaybackClock(PlaybackClock.running(mPlayer.getCurrentPosition(),
+                        frameTimeNanos));
+            }
+            int now = mPlaybackClock.getPositionMsec(frameTimeNanos);
             int frames = mWaveformView.millisecsToPixels(now);
-            mWaveformView.setPlayback(frames);
             setOffsetGoalNoUpdate(frames - mWidth / 2);
-            int endMsec = mWaveformView.pixelsToMillisecs(mWaveformView.getEnd());
-            if (now >= endMsec) {
+            int endMsec = getPlayEndMsec();
+            // The clock may run a bit ahead of the player, which alone tells when the end is
+            // actually played.
+            if (now >= endMsec && mPlayer.getCurrentPosition() >= endMsec) {
                 handlePause();
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        PlayChunk chunk = mPlayChunks[mPlayChunkIdx];
-                        onPlay(chunk.startSec);
+                        onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
                     }
                 });
             }
@@ -300,14 +671,25 @@ public class MainActivity extends Activity
         }
 
         mWaveformView.setParameters(mStartPos, mEndPos, mOffset);
-        mWaveformView.invalidate();
+
+        final boolean moving = mIsPlaying || mFlingVelocity != 0 ||
+                (mOffsetGoal != mOffset && !mKeyDown);
+        if (moving && !mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void setPlaybackClock(PlaybackClock clock) {
+        mPlaybackClock = clock;
+        mWaveformView.setPlaybackClock(clock);
     }
 
     private synchronized void handlePause() {
         if (mPlayer != null && mPlayer.isPlaying()) {
             mPlayer.pause();
         }
-        mWaveformView.setPlayback(-1);
+        setPlaybackClock(PlaybackClock.STOPPED);
         mIsPlaying = false;
         enableDisableButtons();
     }
@@ -318,6 +700,123 @@ public class MainActivity extends Activity
             return;
         }
 
+        if (mSoundFile != null && mSoundFile.isWindowed() && mPlayChunks != null &&
+                (mPlayer == null || !isChunkLoaded(mPlayChunkIdx))) {
+            mPlayWhenWindowLoaded = true;
+            loadWindow();
+            return;
+        }
+        startPlayer(startSec);
+    }
+
+    // Return true if mPlayer can play the given chunk (or if there is no such chunk).
+    private boolean isChunkLoaded(int chunkIdx) {
+        if (chunkIdx < 0 || chunkIdx >= mPlayChunks.size()) {
+            return true;
+        }
+        return mPlayer.contains((int)(mPlayChunks.getStartSec(chunkIdx) * 1000),
+                (int)(mPlayChunks.getEndSec(chunkIdx) * 1000));
+    }
+
+    // Windowed files only: decode the samples around the current chunk in the background, and
+    // give them to mPlayer once they are ready. The current chunk is then played if
+    // mPlayWhenWindowLoaded is set.
+    private void loadWindow() {
+        if (mLoadingWindowThread != null) {
+            return;  // The window is reloaded once done if the current chunk changed meanwhile.
+        }
+        final SoundFile soundFile = mSoundFile;
+        final int chunkIdx = mPlayChunkIdx;
+        final double startSec =
+                mPlayChunks.getStartSec(Math.max(chunkIdx - WINDOW_CHUNK_MARGIN, 0));
+        final double endSec = mPlayChunks.getEndSec(
+                Math.min(chunkIdx + WINDOW_CHUNK_MARGIN, mPlayChunks.size() - 1));
+        final long startSample = (long)(startSec * soundFile.getSampleRate());
+        final long endSample = (long)Math.ceil(endSec * soundFile.getSampleRate()) + 1;
+        mLoadingWindowThread = new Thread() {
+            public void run() {
+                SoundFile.SampleWindow window = null;
+                try {
+                    window = soundFile.getWindow(startSample, endSample);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                final SoundFile.SampleWindow loadedWindow = window;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mLoadingWindowThread = null;
+                        if (mDestroyed) {
+                            return;
+                        }
+                        if (loadedWindow == null || soundFile != mSoundFile) {
+                            mPlayWhenWindowLoaded = false;
+                            return;
+                        }
+                        if (chunkIdx != mPlayChunkIdx) {
+                            // The current chunk changed meanwhile.
+                            loadWindow();
+                            return;
+                        }
+                        if (mPlayer == null) {
+                            mPlayer = new SamplePlayer(soundFile, loadedWindow);
+                        } else {
+                            // Keep the same player (and AudioTrack), even if it is playing.
+                            mPlayer.setWindow(loadedWindow);
+                        }
+                        if (mPlayWhenWindowLoaded && !mIsPlaying) {
+                            mPlayWhenWindowLoaded = false;
+                            startPlayer(mPlayChunks.getStartSec(mPlayChunkIdx));
+                        } else {
+                            prefetchAdjacentChunks();
+                        }
+                    }
+                });
+            }
+        };
+        mLoadingWindowThread.start();
+    }
+
+    // Stage the beginning of the current and adjacent chunks in mPlayer, so that moving to one of
+    // them starts the sound right away. For windowed files, the window around the current chunk
+    // is decoded first if the adjacent chunks are missing.
+    private void prefetchAdjacentChunks() {
+        if (mPlayer == null || mPlayChunks == null) {
+            return;
+        }
+        if (mSoundFile != null && mSoundFile.isWindowed() &&
+                !(isChunkLoaded(mPlayChunkIdx - 1) && isChunkLoaded(mPlayChunkIdx + 1))) {
+            loadWindow();  // prefetchAdjacentChunks() is called again once loaded.
+            return;
+        }
+        final SamplePlayer player = mPlayer;
+        final BoundaryRefiner refiner = mBoundaryRefiner;
+        final double[] positions = new double[3];
+        int numPositions = 0;
+        for (int i=mPlayChunkIdx - 1; i<=mPlayChunkIdx + 1; i++) {
+            if (i >= 0 && i < mPlayChunks.size()) {
+                positions[numPositions++] = mPlayChunks.getStartSec(i);
+            }
+        }
+        final int count = numPositions;
+        // Nothing to do if they are all refined and staged already, e.g. when the chunk loops.
+        boolean staged = true;
+        for (int i=0; i<count && staged; i++) {
+            staged = player.isStaged(refiner.getSample(positions[i]));
+        }
+        if (staged) {
+            return;
+        }
+        // Refining and staging read the samples, which may have to be paged in from disk.
+        mPrefetcher.execute(new Runnable() {
+            public void run() {
+                for (int i=0; i<count; i++) {
+                    player.prefetchSample(refiner.refine(positions[i], player));
+                }
+            }
+        });
+    }
+
+    private synchronized void startPlayer(double startSec) {
         if (mPlayer == null) {
             // Not initialized yet
             return;
@@ -339,33 +838,51 @@ public class MainActivity extends Activity
             });
             mIsPlaying = true;
 
-            final int startMsec = (int)(startSec * 1000);
-            mPlayer.seekTo(startMsec);
+            // The end is refined for getPlayEndMsec().
+            mBoundaryRefiner.refine(mPlayChunks.getEndSec(mPlayChunkIdx), mPlayer);
+            mPlayEndChunks = null;
+            mPlayer.seekToSample(mBoundaryRefiner.refine(startSec, mPlayer));
             mPlayer.start();
+            setPlaybackClock(PlaybackClock.running(mPlayer.getCurrentPosition(),
+                    System.nanoTime()));
             updateDisplay();
             enableDisableButtons();
+            prefetchAdjacentChunks();
         } catch (Exception e) {
             return;
         }
     }
+    // Where playback of the current chunk stops. Called on every frame while playing, so it is
+    // only computed again when the chunk changes.
+    private int getPlayEndMsec() {
+        if (mPlayEndChunks == mPlayChunks && mPlayEndChunkIdx == mPlayChunkIdx) {
+            return mPlayEndMsec;
+        }
+        if (mPlayChunkIdx < 0 || mPlayChunkIdx >= mPlayChunks.size()) {
+            return mWaveformView.pixelsToMillisecs(mWaveformView.getEnd());
+        }
+        final long endSample = mBoundaryRefiner.getSample(mPlayChunks.getEndSec(mPlayChunkIdx));
+        mPlayEndMsec = (int)(endSample * 1000 / mBoundaryRefiner.getSampleRate());
+        mPlayEndChunks = mPlayChunks;
+        mPlayEndChunkIdx = mPlayChunkIdx;
+        return mPlayEndMsec;
+    }
+
     private void resetPositions() {
         assert mPlayChunks != null;
 
-        PlayChunk chunk = mPlayChunks[mPlayChunkIdx];
-        if (chunk == null){
+        if (mPlayChunkIdx < 0 || mPlayChunkIdx >= mPlayChunks.size()){
             mStartPos = mWaveformView.secondsToPixels(0.0);
             mEndPos = mWaveformView.secondsToPixels(15.0);
             mPlayChunkIdx = 0;
-            SharedPreferences.Editor edit = getPreferences(Context.MODE_PRIVATE).edit();
-            edit.putInt(PLAYCHUNK_IDX_KEY, mPlayChunkIdx);
-            edit.commit();
+            saveChunkIdx();
             return;
         }
 
-        mStartPos = mWaveformView.secondsToPixels(chunk.startSec);
-        mEndPos = mWaveformView.secondsToPixels(chunk.endSec);
+        mStartPos = mWaveformView.secondsToPixels(mPlayChunks.getStartSec(mPlayChunkIdx));
+        mEndPos = mWaveformView.secondsToPixels(mPlayChunks.getEndSec(mPlayChunkIdx));
 
-        String position = String.format("%d / %d", mPlayChunkIdx + 1, mPlayChunks.length);
+        String position = String.format("%d / %d", mPlayChunkIdx + 1, mPlayChunks.size());
         mPositionText.setText(position);
     }
 
@@ -385,28 +902,24 @@ public class MainActivity extends Activity
         public void onClick(View sender) {
             if (mPlayChunks == null)
                 return;
-            assert mPlayChunkIdx >= mPlayChunks.length;
+            assert mPlayChunkIdx >= mPlayChunks.size();
 
-            PlayChunk chunk = mPlayChunks[mPlayChunkIdx];
-            onPlay(chunk.startSec);
+            onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
         }
     };
 
     private OnClickListener mFfwdListener = new OnClickListener() {
         public void onClick(View sender) {
             if (mIsPlaying) {
-                final int chunkCount = mPlayChunks.length;
+                final int chunkCount = mPlayChunks.size();
                 if (mPlayChunkIdx + 1 >= chunkCount)
                     return;
 
                 handlePause();
                 ++mPlayChunkIdx;
-                SharedPreferences.Editor edit = getPreferences(Context.MODE_PRIVATE).edit();
-                edit.putInt(PLAYCHUNK_IDX_KEY, mPlayChunkIdx);
-                edit.commit();
+                saveChunkIdx();
                 resetPositions();
-                PlayChunk playChunk = mPlayChunks[mPlayChunkIdx];
-                onPlay(playChunk.startSec);
+                onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
             }
         }
     };
@@ -414,24 +927,81 @@ public class MainActivity extends Activity
     private OnClickListener mMergeListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (mPlayChunks == null)
+            if (!canEditChunks())
                 return;
-            if (mPlayChunkIdx <= 0 || mPlayChunks.length == 1)
+            if (mPlayChunkIdx <= 0 || mPlayChunks.size() == 1)
                 return;
             handlePause();
 
-            mPlayChunks = SoundUtil.MergePlayChunks(mPlayChunks, mPlayChunkIdx);
-            mWaveformView.updatePlayChunks(mPlayChunks);
-            --mPlayChunkIdx;
-            SharedPreferences.Editor edit = getPreferences(Context.MODE_PRIVATE).edit();
-            edit.putInt(PLAYCHUNK_IDX_KEY, mPlayChunkIdx);
-            edit.commit();
-            resetPositions();
-            PlayChunk playChunk = mPlayChunks[mPlayChunkIdx];
-            onPlay(playChunk.startSec);
+            editPlayChunks(mChunkHistory.merge(mPlayChunkIdx), mPlayChunkIdx - 1);
+            onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
+        }
+    };
+
+    // Split the current chunk at the playback position.
+    private OnClickListener mSplitListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (!canEditChunks() || !mIsPlaying)
+                return;
+            final double sec = mPlayer.getCurrentPosition() / 1000.0;
+            handlePause();
+
+            final int chunkIdx = mPlayChunks.indexAt(sec);
+            editPlayChunks(mChunkHistory.split(chunkIdx, sec), chunkIdx + 1);
+            onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
+        }
+    };
+
+    private OnClickListener mUndoListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (!canEditChunks() || !mChunkHistory.canUndo())
+                return;
+            handlePause();
+            editPlayChunks(mChunkHistory.undo(), mPlayChunkIdx);
+        }
+    };
+
+    private View.OnLongClickListener mRedoListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            if (!canEditChunks() || !mChunkHistory.canRedo())
+                return false;
+            handlePause();
+            editPlayChunks(mChunkHistory.redo(), mPlayChunkIdx);
+            return true;
         }
     };
 
+    // Chunks are only edited once the file is decoded: the chunks shown while decoding are
+    // replaced by those of the whole file then, and couldn't be saved before anyway.
+    private boolean canEditChunks() {
+        return mSoundFile != null && mChunkHistory != null;
+    }
+
+    // Show chunks (the current chunks of mChunkHistory after an edit), with chunkIdx selected,
+    // and save them.
+    private void editPlayChunks(ChunkList chunks, int chunkIdx) {
+        mPlayChunks = chunks;
+        mWaveformView.updatePlayChunks(mPlayChunks.toArray());
+        mPlayChunkIdx = Math.max(Math.min(chunkIdx, mPlayChunks.size() - 1), 0);
+        saveChunkIdx();
+        saveChunks();
+        resetPositions();
+        updateDisplay();
+    }
+
+    private void saveChunks() {
+        if (mChunkSidecar != null && mSoundFile != null)
+            mChunkSidecar.save(mChunkHistory, mSoundFile.getSampleRate());
+    }
+
+    private void saveChunkIdx() {
+        if (mChunkSidecar != null)
+            mChunkSidecar.setChunkIdx(mPlayChunkIdx);
+    }
+
     private OnClickListener mRewindListener = new OnClickListener() {
         public void onClick(View sender) {
             if (mIsPlaying) {
@@ -440,13 +1010,10 @@ public class MainActivity extends Activity
 
                 handlePause();
                 --mPlayChunkIdx;
-                SharedPreferences.Editor edit = getPreferences(Context.MODE_PRIVATE).edit();
-                edit.putInt(PLAYCHUNK_IDX_KEY, mPlayChunkIdx);
-                edit.commit();
+                saveChunkIdx();
                 resetPositions();
                 resetPositions();
-                PlayChunk playChunk = mPlayChunks[mPlayChunkIdx];
-                onPlay(playChunk.startSec);
+                onPlay(mPlayChunks.getStartSec(mPlayChunkIdx));
             }
         }
     };
@@ -457,5 +1024,9 @@ public class MainActivity extends Activity
         final String desc = mIsPlaying ? "Stop" : "Play";
         mPlayButton.setImageResource(resId);
         mPlayButton.setContentDescription(desc);
+        final boolean editable = canEditChunks();
+        mMergeButton.setEnabled(editable);
+        mSplitButton.setEnabled(editable);
+        mUndoButton.setEnabled(editable);
     }
 }
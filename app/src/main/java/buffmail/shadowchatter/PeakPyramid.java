@@ -0,0 +1,130 @@
+package buffmail.shadowchatter;
+
+import buffmail.shadowchatter.soundfile.GainNormalizer;
+
+// Heights of the waveform at any zoom, from the display heights of the frames (Cf.
+// GainNormalizer).
+//
+// Level k holds the peak (highest height) of each block of 2^k frames, as quantized bytes like
+// the heights, which are level 0. A pixel covering many frames is drawn with the peak of the few
+// blocks of the highest level fitting in it, so a short loud sound stays visible however far the
+// view is zoomed out, instead of being averaged away. A pixel covering less than a frame is
+// interpolated between the two nearest frames, so the zoom can be any real number.
+//
+// Levels are only built when first needed, each from the previous one, and take half as much
+// memory as it: the whole pyramid is less than one byte per frame on top of the heights.
+// May be used from several threads at once.
+//
+// A placeholder pyramid starts at a higher level instead of the heights: it is computed from a
+// fraction of the work (Cf. placeholder()), and draws the blocks of that level as flat steps.
+class PeakPyramid {
+    private static final int PLACEHOLDER_LEVEL = 6;
+
+    private final int mNumFrames;
+    private final int mBaseLevel;  // The first level, below which there are none.
+    private volatile byte[][] mLevels;  // Replaced when levels are added.
+
+    // heights are shared with the caller, and must not be modified afterwards.
+    PeakPyramid(byte[] heights, int numFrames) {
+        this(heights, numFrames, 0);
+    }
+
+    private PeakPyramid(byte[] peaks, int numFrames, int baseLevel) {
+        mNumFrames = numFrames;
+        mBaseLevel = baseLevel;
+        mLevels = new byte[baseLevel + 1][];
+        mLevels[baseLevel] = peaks;
+    }
+
+    // Return a coarse pyramid of the first numFrames frames of frameGains, to show until the
+    // heights are computed: only the loudest frame of each block of the placeholder level is
+    // normalized.
+    static PeakPyramid placeholder(int[] frameGains, int numFrames) {
+        final int numBlocks = (int)(((long)numFrames + (1 << PLACEHOLDER_LEVEL) - 1) >>
+                PLACEHOLDER_LEVEL);
+        int[] blockGains = new int[numBlocks];
+        for (int i = 0; i < numFrames; ++i) {
+            final int block = i >> PLACEHOLDER_LEVEL;
+            blockGains[block] = Math.max(blockGains[block], frameGains[i]);
+        }
+        return new PeakPyramid(GainNormalizer.normalize(blockGains, numBlocks), numFrames,
+                PLACEHOLDER_LEVEL);
+    }
+
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Return the height (0 to GainNormalizer.MAX_HEIGHT) of the frames from startFrame to
+    // endFrame, fractional positions in [0, getNumFrames()].
+    int getHeight(double startFrame, double endFrame) {
+        if (mNumFrames == 0)
+            return 0;
+        if (endFrame - startFrame <= 1.0 && mBaseLevel == 0)
+            return getInterpolatedHeight(0.5 * (startFrame + endFrame) - 0.5);
+
+        // The level of the largest blocks fitting in the range, which it overlaps 2 to 4 of.
+        final int level = Math.max(getLevelFor(endFrame - startFrame), mBaseLevel);
+        final byte[] peaks = getLevel(level);
+        final int first = Math.max((int)startFrame, 0) >> level;
+        final int last = Math.max(Math.min((int)Math.ceil(endFrame) - 1, mNumFrames - 1) >> level,
+                first);
+        int peak = 0;
+        for (int i = first; i <= last; ++i)
+            peak = Math.max(peak, GainNormalizer.getHeight(peaks[i]));
+        return peak;
+    }
+
+    // Build the levels drawn when a pixel covers up to maxFrames frames, e.g. in the background,
+    // so that drawing doesn't have to.
+    void buildLevels(double maxFrames) {
+        getLevel(Math.max(getLevelFor(maxFrames), mBaseLevel));
+    }
+
+    private static int getLevelFor(double numFrames) {
+        return Math.max(31 - Integer.numberOfLeadingZeros((int)numFrames), 0);
+    }
+
+    private int getInterpolatedHeight(double frame) {
+        final byte[] heights = mLevels[0];
+        if (frame <= 0)
+            return GainNormalizer.getHeight(heights[0]);
+        if (frame >= mNumFrames - 1)
+            return GainNormalizer.getHeight(heights[mNumFrames - 1]);
+        final int before = (int)frame;
+        final double fraction = frame - before;
+        return (int)Math.round(
+                (1 - fraction) * GainNormalizer.getHeight(heights[before]) +
+                        fraction * GainNormalizer.getHeight(heights[before + 1]));
+    }
+
+    private byte[] getLevel(int level) {
+        final byte[][] built = mLevels;
+        if (level < built.length)
+            return built[level];
+        synchronized (this) {
+            if (level < mLevels.length)
+                return mLevels[level];
+            byte[][] levels = new byte[level + 1][];
+            System.arraycopy(mLevels, 0, levels, 0, mLevels.length);
+            for (int k = mLevels.length; k <= level; ++k) {
+                final byte[] below = levels[k - 1];
+                final int belowSize = getLevelSize(k - 1);
+                byte[] peaks = new byte[getLevelSize(k)];
+                for (int i = 0; i < peaks.length; ++i) {
+                    final int left = GainNormalizer.getHeight(below[2 * i]);
+                    final int right = (2 * i + 1 < belowSize) ?
+                            GainNormalizer.getHeight(below[2 * i + 1]) : 0;
+                    peaks[i] = (byte)Math.max(left, right);
+                }
+                levels[k] = peaks;
+            }
+            mLevels = levels;
+            return levels[level];
+        }
+    }
+
+    private int getLevelSize(int level) {
+        return (int)(((long)mNumFrames + (1 << level) - 1) >> level);
+    }
+}
@@ -0,0 +1,43 @@
+package buffmail.shadowchatter;
+
+// Position of the playback at any time, extrapolated from the last position read from the
+// player, so that drawing the cursor on every frame doesn't have to ask the player (and wait for
+// its lock) each time. Times are in the System.nanoTime() base, like the frame times of
+// Choreographer.
+//
+// Immutable: a new clock is made whenever the playback starts, stops, or is read again.
+final class PlaybackClock {
+    static final PlaybackClock STOPPED = new PlaybackClock(-1, 0);
+    // How long the clock is trusted to follow the player, Cf. isStale().
+    private static final long RESYNC_NANOS = 250L * 1000 * 1000;
+
+    private final int mPositionMsec;
+    private final long mTimeNanos;
+
+    private PlaybackClock(int positionMsec, long timeNanos) {
+        mPositionMsec = positionMsec;
+        mTimeNanos = timeNanos;
+    }
+
+    // A clock of a playback which was at positionMsec at timeNanos.
+    static PlaybackClock running(int positionMsec, long timeNanos) {
+        return new PlaybackClock(positionMsec, timeNanos);
+    }
+
+    boolean isRunning() {
+        return mPositionMsec >= 0;
+    }
+
+    // Return true if the position should be read from the player again by timeNanos, for the
+    // clock not to drift away from it (e.g. because of the output latency at the start).
+    boolean isStale(long timeNanos) {
+        return timeNanos - mTimeNanos >= RESYNC_NANOS;
+    }
+
+    // Return the position of the playback at timeNanos (or -1 if stopped).
+    int getPositionMsec(long timeNanos) {
+        if (!isRunning())
+            return -1;
+        return mPositionMsec + (int)(Math.max(timeNanos - mTimeNanos, 0) / (1000 * 1000));
+    }
+}
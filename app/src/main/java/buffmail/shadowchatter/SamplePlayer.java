@@ -16,36 +16,70 @@
 
 package buffmail.shadowchatter;
 
-import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 
+import buffmail.shadowchatter.soundfile.PcmBuffer;
 import buffmail.shadowchatter.soundfile.SoundFile;
 
-class SamplePlayer {
+/**
+ * Plays 16 bits PCM samples with an AudioTrack.
+ *
+ * A single thread feeds the AudioTrack for the whole lifetime of the player, and seeking only
+ * flushes the track: the thread and the track are never torn down between two chunks. The first
+ * buffer following a few positions can be staged in advance with prefetchSample(), in which case
+ * playback from these positions starts as soon as that buffer is written.
+ */
+class SamplePlayer implements BoundaryRefiner.Samples {
     public interface OnCompletionListener {
         public void onCompletion();
     };
 
-    private ShortBuffer mSamples;
+    private static final int MAX_STAGED_BUFFERS = 4;
+
+    // Guards everything the feeding thread shares with the other threads.
+    private final Object mLock = new Object();
+    private PcmBuffer mSamples;
     private int mSampleRate;
     private int mChannels;
-    private int mNumSamples;  // Number of samples per channel.
+    private long mFirstSample;  // Index in the file of the first sample of mSamples.
     private AudioTrack mAudioTrack;
     private short[] mBuffer;
-    private int mPlaybackStart;  // Start offset, in samples.
+    private long mPlaybackStart;  // Index in the file of the sample at playback head position 0.
+    private long mWritePosition;  // Index in the file of the next sample to write to mAudioTrack.
+    private boolean mSeekPending;  // true until the feeding thread handled the last seekTo().
     private Thread mPlayThread;
     private boolean mKeepPlaying;
+    private boolean mReleased;
     private OnCompletionListener mListener;
+    // Copies of the first buffer to write from a few positions, Cf. prefetchSample().
+    private final Map<Long, short[]> mStagedBuffers =
+            new LinkedHashMap<Long, short[]>(MAX_STAGED_BUFFERS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, short[]> eldest) {
+                    return size() > MAX_STAGED_BUFFERS;
+                }
+            };
+
+    public SamplePlayer(PcmBuffer samples, int sampleRate) {
+        this(samples, sampleRate, 0);
+    }
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
+    // Play samples, which start at firstSample in the file. The positions used by seekTo() and
+    // getCurrentPosition() are still relative to the start of the file.
+    public SamplePlayer(PcmBuffer samples, int sampleRate, long firstSample) {
         mSamples = samples;
         mSampleRate = sampleRate;
-        mChannels = channels;
-        mNumSamples = numSamples;
-        mPlaybackStart = 0;
+        mChannels = samples.getChannels();
+        mFirstSample = firstSample;
+        mPlaybackStart = firstSample;
+        mWritePosition = firstSample;
+        mSeekPending = true;
 
         int bufferSize = AudioTrack.getMinBufferSize(
                 mSampleRate,
@@ -64,7 +98,7 @@ class SamplePlayer {
                 mBuffer.length * 2,
                 AudioTrack.MODE_STREAM);
         // Check when player played all the given data and notify user if mListener is set.
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1);  // Set the marker to the end.
+        setMarkerToEnd();
         mAudioTrack.setPlaybackPositionUpdateListener(
                 new AudioTrack.OnPlaybackPositionUpdateListener() {
                     @Override
@@ -78,103 +112,282 @@ class SamplePlayer {
                         }
                     }
                 });
-        mPlayThread = null;
-        mKeepPlaying = true;
+        mKeepPlaying = false;
+        mReleased = false;
         mListener = null;
+        // Thread feeding the audio samples to the audio hardware.
+        // (Assumes mChannels = 1 or 2).
+        mPlayThread = new Thread () {
+            public void run() {
+                feed();
+            }
+        };
+        mPlayThread.start();
     }
 
     public SamplePlayer(SoundFile sf) {
-        this(sf.getSamples(), sf.getSampleRate(), sf.getChannels(), sf.getNumSamples());
+        this(sf.getSamples(), sf.getSampleRate());
+    }
+
+    public SamplePlayer(SoundFile sf, SoundFile.SampleWindow window) {
+        this(window.getSamples(), sf.getSampleRate(), window.getStartSample());
     }
 
     public void setOnCompletionListener(OnCompletionListener listener) {
         mListener = listener;
     }
 
+    // Replace the samples by another window of the same file. Playback goes on seamlessly if the
+    // new window contains the samples being played.
+    public void setWindow(SoundFile.SampleWindow window) {
+        synchronized (mLock) {
+            mSamples = window.getSamples();
+            mFirstSample = window.getStartSample();
+            if (!mSeekPending) {
+                setMarkerToEnd();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    // Replace the samples by a longer prefix of the file, e.g. as it is decoded. Playback goes
+    // on seamlessly.
+    public void setSamples(PcmBuffer samples) {
+        synchronized (mLock) {
+            mSamples = samples;
+            mFirstSample = 0;
+            if (!mSeekPending) {
+                setMarkerToEnd();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    // Return true if the samples between startMsec and endMsec can be played.
+    public boolean contains(int startMsec, int endMsec) {
+        long startSample = (long)(startMsec * (mSampleRate / 1000.0));
+        long endSample = (long)(endMsec * (mSampleRate / 1000.0));
+        synchronized (mLock) {
+            return startSample >= mFirstSample && endSample <= getEndSample();
+        }
+    }
+
+    // Return true if the first buffer to play from position (in the file) is already staged by
+    // prefetchSample().
+    public boolean isStaged(long position) {
+        synchronized (mLock) {
+            return mStagedBuffers.containsKey(clampSampleIndex(position));
+        }
+    }
+
+    // Copy the first buffer to play from position (in the file) ahead of time, so that playback
+    // from that position neither waits for the samples to be read (e.g. paged in from disk) nor
+    // copies them. May be called from any thread.
+    public void prefetchSample(long position) {
+        long firstSample;
+        PcmBuffer samples;
+        synchronized (mLock) {
+            position = clampSampleIndex(position);
+            if (mReleased || mStagedBuffers.containsKey(position)) {
+                return;
+            }
+            samples = mSamples;
+            firstSample = mFirstSample;
+        }
+        short[] buffer = new short[mBuffer.length];
+        int length = samples.get(position - firstSample, buffer, 0, buffer.length / mChannels);
+        if (length <= 0) {
+            return;
+        }
+        short[] staged = Arrays.copyOf(buffer, length * mChannels);
+        synchronized (mLock) {
+            mStagedBuffers.put(position, staged);
+        }
+    }
+
     public boolean isPlaying() {
-        return mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        synchronized (mLock) {
+            return mKeepPlaying;
+        }
     }
 
     public boolean isPaused() {
-        return mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PAUSED;
+        synchronized (mLock) {
+            return !mKeepPlaying && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PAUSED;
+        }
     }
 
     public void start() {
-        if (isPlaying()) {
-            return;
-        }
-        mKeepPlaying = true;
-        mAudioTrack.flush();
-        mAudioTrack.play();
-        // Setting thread feeding the audio samples to the audio hardware.
-        // (Assumes mChannels = 1 or 2).
-        mPlayThread = new Thread () {
-            public void run() {
-                int position = mPlaybackStart * mChannels;
-                mSamples.position(position);
-                int limit = mNumSamples * mChannels;
-                while (mSamples.position() < limit && mKeepPlaying) {
-                    int numSamplesLeft = limit - mSamples.position();
-                    if(numSamplesLeft >= mBuffer.length) {
-                        mSamples.get(mBuffer);
-                    } else {
-                        for(int i=numSamplesLeft; i<mBuffer.length; i++) {
-                            mBuffer[i] = 0;
-                        }
-                        mSamples.get(mBuffer, 0, numSamplesLeft);
-                    }
-                    // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
-                    mAudioTrack.write(mBuffer, 0, mBuffer.length);
-                }
+        synchronized (mLock) {
+            if (mKeepPlaying || mReleased) {
+                return;
             }
-        };
-        mPlayThread.start();
+            mKeepPlaying = true;
+            if (!mSeekPending) {
+                // Resume where we paused. Otherwise, the feeding thread starts the track once it
+                // has written the first buffer.
+                mAudioTrack.play();
+            }
+            mLock.notifyAll();
+        }
     }
 
     public void pause() {
-        if (isPlaying()) {
-            mAudioTrack.pause();
-            // mAudioTrack.write() should block if it cannot write.
+        synchronized (mLock) {
+            if (mKeepPlaying) {
+                mKeepPlaying = false;
+                mAudioTrack.pause();
+                // mAudioTrack.write() should block if it cannot write.
+            }
         }
     }
 
+    // Stop the playback. The next call to start() plays again from the last seek position.
     public void stop() {
-        if (isPlaying() || isPaused()) {
+        synchronized (mLock) {
             mKeepPlaying = false;
-            mAudioTrack.pause();  // pause() stops the playback immediately.
-            mAudioTrack.stop();   // Unblock mAudioTrack.write() to avoid deadlocks.
-            if (mPlayThread != null) {
-                try {
-                    mPlayThread.join();
-                } catch (InterruptedException e) {
-                }
-                mPlayThread = null;
-            }
-            mAudioTrack.flush();  // just in case...
+            seek(mPlaybackStart);
         }
     }
 
     public void release() {
-        stop();
+        synchronized (mLock) {
+            mReleased = true;
+            mKeepPlaying = false;
+            mAudioTrack.pause();  // pause() stops the playback immediately.
+            mAudioTrack.stop();   // Unblock mAudioTrack.write() to avoid deadlocks.
+            mLock.notifyAll();
+        }
+        if (mPlayThread != null) {
+            try {
+                mPlayThread.join();
+            } catch (InterruptedException e) {
+            }
+            mPlayThread = null;
+        }
         mAudioTrack.release();
     }
 
+    // Move the playback position to msec, without stopping the playback if it is playing.
     public void seekTo(int msec) {
-        boolean wasPlaying = isPlaying();
-        stop();
-        mPlaybackStart = (int)(msec * (mSampleRate / 1000.0));
-        if (mPlaybackStart > mNumSamples) {
-            mPlaybackStart = mNumSamples;  // Nothing to play...
+        synchronized (mLock) {
+            seek(getSampleIndex(msec));
         }
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1 - mPlaybackStart);
-        if (wasPlaying) {
-            start();
+    }
+
+    // Same as above, to the given sample (in the file).
+    public void seekToSample(long position) {
+        synchronized (mLock) {
+            seek(clampSampleIndex(position));
         }
     }
 
+    // Copy up to numSamples samples from position (in the file), if they are in the current
+    // window. Return the number of samples (per channel) copied. May be called from any thread.
+    @Override
+    public int read(long position, short[] dst, int numSamples) {
+        PcmBuffer samples;
+        long firstSample;
+        synchronized (mLock) {
+            if (position < mFirstSample || position >= getEndSample()) {
+                return 0;
+            }
+            samples = mSamples;
+            firstSample = mFirstSample;
+        }
+        return samples.get(position - firstSample, dst, 0, numSamples);
+    }
+
     public int getCurrentPosition() {
-        return (int)((mPlaybackStart + mAudioTrack.getPlaybackHeadPosition()) *
-                (1000.0 / mSampleRate));
+        synchronized (mLock) {
+            return (int)((mPlaybackStart + mAudioTrack.getPlaybackHeadPosition()) *
+                    (1000.0 / mSampleRate));
+        }
+    }
+
+    // Must be called with mLock held.
+    private long getEndSample() {
+        return mFirstSample + mSamples.getNumSamples();
+    }
+
+    // Must be called with mLock held.
+    private long getSampleIndex(int msec) {
+        return clampSampleIndex((long)(msec * (mSampleRate / 1000.0)));
+    }
+
+    // Must be called with mLock held.
+    private long clampSampleIndex(long position) {
+        return Math.max(mFirstSample, Math.min(position, getEndSample()));
+    }
+
+    // Set the notification marker to the last sample, counted from the last seek position.
+    // Must be called with mLock held (or from the constructor).
+    private void setMarkerToEnd() {
+        long numSamples = getEndSample() - 1 - mPlaybackStart;
+        mAudioTrack.setNotificationMarkerPosition((int)Math.min(numSamples, Integer.MAX_VALUE));
+    }
+
+    // Must be called with mLock held.
+    private void seek(long position) {
+        // Drop the samples queued in the track. Stopping it also unblocks mAudioTrack.write(),
+        // and resets the playback head position.
+        mAudioTrack.pause();
+        mAudioTrack.stop();
+        mAudioTrack.flush();
+        mPlaybackStart = position;
+        mWritePosition = position;
+        mSeekPending = true;
+        mLock.notifyAll();
     }
-}
 
+    // Body of mPlayThread: write the samples to mAudioTrack until the player is released.
+    private void feed() {
+        while (true) {
+            short[] data = null;
+            int length;
+            boolean startTrack = false;
+            synchronized (mLock) {
+                // Also wait if the samples to write are not in the current window.
+                while (!mReleased && !mSeekPending && (!mKeepPlaying ||
+                        mWritePosition < mFirstSample || mWritePosition >= getEndSample())) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (mReleased) {
+                    return;
+                }
+                if (mSeekPending) {
+                    // A write may have completed since the seek: drop it as well.
+                    mAudioTrack.flush();
+                    setMarkerToEnd();
+                    mSeekPending = false;
+                    startTrack = true;
+                    data = mStagedBuffers.get(mWritePosition);
+                }
+                if (data != null) {
+                    length = data.length;
+                } else {
+                    // Nothing is read if the samples are not in the current window.
+                    length = mChannels * mSamples.get(mWritePosition - mFirstSample,
+                            mBuffer, 0, mBuffer.length / mChannels);
+                    data = mBuffer;
+                }
+                mWritePosition += length / mChannels;
+            }
+            if (length > 0) {
+                // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
+                mAudioTrack.write(data, 0, length);
+            }
+            if (startTrack) {
+                // The first buffer is queued: playback can start right away.
+                synchronized (mLock) {
+                    if (mKeepPlaying && !mSeekPending) {
+                        mAudioTrack.play();
+                    }
+                }
+            }
+        }
+    }
+}
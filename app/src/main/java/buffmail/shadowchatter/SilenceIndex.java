@@ -0,0 +1,253 @@
+package buffmail.shadowchatter;
+
+import java.util.Arrays;
+
+// Index of all the silences of a file, for any silence threshold, so that the file can be split
+// again with another threshold or minimum gap without going over its frames.
+//
+// Frames are rated with the level of VoiceActivityDetector, quantized to LEVEL_STEPS steps per
+// unit. For a given threshold, the silences are the maximal runs of frames not above it. Going up
+// from 0 to MAX_THRESHOLD, these runs appear, grow and merge with their neighbors, so there are
+// at most one per frame overall: each of them is recorded (start, length, lowest and highest
+// level) along with the range of thresholds for which it exists.
+//
+// The runs are then filed in a segment tree over the thresholds, from the longest to the
+// shortest in each node. The runs of a threshold are those of the nodes on the path from its leaf
+// to the root, and only the long enough ones are read, so a query takes time proportional to its
+// output (plus sorting it).
+class SilenceIndex {
+    static final double MAX_THRESHOLD = 0.5;
+    private static final int LEVEL_STEPS = 512;
+    private static final int MAX_LEVEL = (int)(MAX_THRESHOLD * LEVEL_STEPS);
+    private static final int LOUD = MAX_LEVEL + 1;  // Quantized level of frames above any threshold.
+
+    private final int mSampleRate;
+    private final int mSamplesPerFrame;
+    private final int mNumFrames;
+    private int mNumRuns;
+    private int[] mRunStarts;
+    private int[] mRunLengths;
+    private short[] mRunMinLevels;
+    private short[] mRunMaxLevels;  // The run exists for thresholds in [max level, ...).
+    private short[] mRunEndLevels;  // ... up to this one (excluded).
+    // Segment tree over the quantized thresholds, with the runs of each node stored contiguously
+    // in mNodeRuns, from mNodeOffsets[node] to mNodeOffsets[node + 1].
+    private int mNumLeaves;
+    private int[] mNodeOffsets;
+    private int[] mNodeRuns;
+
+    private SilenceIndex(int sampleRate, int samplesPerFrame, int numFrames) {
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        mNumFrames = numFrames;
+    }
+
+    static SilenceIndex build(final int[] frameGains, int sampleRate, int samplesPerFrame) {
+        final int numFrames = frameGains.length;
+        SilenceIndex index = new SilenceIndex(sampleRate, samplesPerFrame, numFrames);
+
+        VoiceActivityDetector detector = new VoiceActivityDetector(sampleRate, samplesPerFrame);
+        short[] levels = new short[numFrames];
+        for (int i = 0; i < numFrames; ++i) {
+            detector.addFrame(frameGains[i]);
+            final double level = Math.ceil(detector.getLevel() * LEVEL_STEPS);
+            levels[i] = (short)Math.max(Math.min(level, LOUD), 0);
+        }
+        index.findRuns(levels);
+        index.fileRuns();
+        return index;
+    }
+
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // End of the last chunk returned by getPlayChunks().
+    double getDurationSec() {
+        return SoundUtil.framesToSeconds(Math.max(mNumFrames - 1, 0), mSampleRate, mSamplesPerFrame);
+    }
+
+    // Split the file at the middle of the silences with no frame above threshold (from 0 to
+    // MAX_THRESHOLD, Cf. VoiceActivityDetector.getLevel()) lasting at least minGapSec. Leading
+    // and trailing silences are ignored. Return null if there is no such silence.
+    ChunkArray getPlayChunks(double threshold, double minGapSec) {
+        final int[] boundaries = getBoundaries(threshold, minGapSec);
+        return SoundUtil.MakePlayChunks(boundaries, boundaries.length,
+                mNumFrames, mSampleRate, mSamplesPerFrame);
+    }
+
+    // Same as above, returning the frames where the chunks start (but the first one).
+    int[] getBoundaries(double threshold, double minGapSec) {
+        final int[] runs = getRuns(threshold, minGapSec);
+        int[] boundaries = new int[runs.length];
+        for (int i = 0; i < runs.length; ++i)
+            boundaries[i] = getMiddle(runs[i]);
+        return boundaries;
+    }
+
+    // Split the file at some of the silences of getPlayChunks(), trying to keep the chunks
+    // between minChunkSec and maxChunkSec (Cf. ChunkOptimizer). Return null if there is no
+    // silence.
+    ChunkArray getOptimalPlayChunks(double threshold, double minGapSec,
+                                    double minChunkSec, double maxChunkSec) {
+        final int[] runs = getRuns(threshold, minGapSec);
+        final int level = getThresholdLevel(threshold);
+        final double framesPerSec = (double)mSampleRate / mSamplesPerFrame;
+        double[] times = new double[runs.length];
+        double[] lengths = new double[runs.length];
+        double[] depths = new double[runs.length];
+        for (int i = 0; i < runs.length; ++i) {
+            final int run = runs[i];
+            times[i] = getMiddle(run) / framesPerSec;
+            lengths[i] = mRunLengths[run] / framesPerSec;
+            // How far below the threshold the silence goes, from 0 to 1.
+            depths[i] = (double)(level + 1 - mRunMinLevels[run]) / (level + 1);
+        }
+        final int[] chosen = ChunkOptimizer.chooseBoundaries(times, lengths, depths,
+                getDurationSec(), minChunkSec, maxChunkSec);
+        int[] boundaries = new int[chosen.length];
+        for (int i = 0; i < chosen.length; ++i)
+            boundaries[i] = getMiddle(runs[chosen[i]]);
+        return SoundUtil.MakePlayChunks(boundaries, boundaries.length,
+                mNumFrames, mSampleRate, mSamplesPerFrame);
+    }
+
+    private static int getThresholdLevel(double threshold) {
+        return (int)Math.floor(Math.min(threshold, MAX_THRESHOLD) * LEVEL_STEPS);
+    }
+
+    // Same position as VoiceActivityDetector, from the frame where speech resumes.
+    private int getMiddle(int run) {
+        return (2 * mRunStarts[run] + mRunLengths[run]) / 2;
+    }
+
+    // Return the runs at the given threshold lasting at least minGapSec, in order, but the
+    // leading and trailing ones.
+    private int[] getRuns(double threshold, double minGapSec) {
+        final int level = getThresholdLevel(threshold);
+        if (level < 0 || mNumRuns == 0)
+            return new int[0];
+        final int minFrames = Math.max(
+                (int)(minGapSec * mSampleRate / mSamplesPerFrame + 0.5), 1);
+
+        // The runs of a threshold don't overlap: sort them by start, kept in the high bits.
+        long[] runs = new long[16];
+        int numRuns = 0;
+        for (int node = mNumLeaves + level; node >= 1; node /= 2) {
+            for (int i = mNodeOffsets[node]; i < mNodeOffsets[node + 1]; ++i) {
+                final int run = mNodeRuns[i];
+                if (mRunLengths[run] < minFrames)
+                    break;  // The next ones are shorter.
+                final int start = mRunStarts[run];
+                if (start == 0 || start + mRunLengths[run] == mNumFrames)
+                    continue;
+                if (numRuns == runs.length)
+                    runs = Arrays.copyOf(runs, 2 * numRuns);
+                runs[numRuns++] = ((long)start << 32) | run;
+            }
+        }
+        Arrays.sort(runs, 0, numRuns);
+        int[] sorted = new int[numRuns];
+        for (int i = 0; i < numRuns; ++i)
+            sorted[i] = (int)runs[i];
+        return sorted;
+    }
+
+    // Record the runs of frames not above each threshold. These are the subtrees of the
+    // Cartesian tree of the levels (with the loudest frame at the root), built with a stack in
+    // one pass: a frame is popped, and its subtree complete, once a louder frame comes in.
+    private void findRuns(final short[] levels) {
+        final int numFrames = levels.length;
+        mRunStarts = new int[16];
+        mRunLengths = new int[16];
+        mRunMinLevels = new short[16];
+        mRunMaxLevels = new short[16];
+        mRunEndLevels = new short[16];
+        mNumRuns = 0;
+
+        int[] stack = new int[16];
+        // Lowest level from the frame below in the stack (excluded) to this one (included).
+        short[] stackMins = new short[16];
+        int stackSize = 0;
+        for (int i = 0; i <= numFrames; ++i) {
+            final int level = (i < numFrames) ? levels[i] : Integer.MAX_VALUE;
+            int subtreeMin = Integer.MAX_VALUE;  // Of the frames popped so far.
+            while (stackSize > 0 && levels[stack[stackSize - 1]] < level) {
+                final int top = stack[--stackSize];
+                subtreeMin = Math.min(subtreeMin, stackMins[stackSize]);
+                final int start = (stackSize > 0) ? stack[stackSize - 1] + 1 : 0;
+                final int endLevel = Math.min(
+                        (stackSize > 0) ? levels[stack[stackSize - 1]] : LOUD + 1,
+                        (i < numFrames) ? level : LOUD + 1);
+                if (levels[top] <= MAX_LEVEL && endLevel > levels[top]) {
+                    addRun(start, i - start, subtreeMin, levels[top], endLevel);
+                }
+            }
+            if (i == numFrames)
+                break;
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stackSize);
+                stackMins = Arrays.copyOf(stackMins, 2 * stackSize);
+            }
+            stack[stackSize] = i;
+            stackMins[stackSize] = (short)Math.min(level, subtreeMin);
+            ++stackSize;
+        }
+    }
+
+    private void addRun(int start, int length, int minLevel, int maxLevel, int endLevel) {
+        if (mNumRuns == mRunStarts.length) {
+            final int capacity = 2 * mNumRuns;
+            mRunStarts = Arrays.copyOf(mRunStarts, capacity);
+            mRunLengths = Arrays.copyOf(mRunLengths, capacity);
+            mRunMinLevels = Arrays.copyOf(mRunMinLevels, capacity);
+            mRunMaxLevels = Arrays.copyOf(mRunMaxLevels, capacity);
+            mRunEndLevels = Arrays.copyOf(mRunEndLevels, capacity);
+        }
+        mRunStarts[mNumRuns] = start;
+        mRunLengths[mNumRuns] = length;
+        mRunMinLevels[mNumRuns] = (short)minLevel;
+        mRunMaxLevels[mNumRuns] = (short)maxLevel;
+        mRunEndLevels[mNumRuns] = (short)endLevel;
+        ++mNumRuns;
+    }
+
+    // File each run in the O(log(MAX_LEVEL)) nodes of the segment tree covering its thresholds,
+    // longest runs first.
+    private void fileRuns() {
+        mNumLeaves = Integer.highestOneBit(MAX_LEVEL) * 2;
+        // Sort the runs by decreasing length, keeping their index in the low bits.
+        long[] order = new long[mNumRuns];
+        for (int run = 0; run < mNumRuns; ++run)
+            order[run] = ((long)(Integer.MAX_VALUE - mRunLengths[run]) << 32) | run;
+        Arrays.sort(order);
+
+        mNodeOffsets = new int[2 * mNumLeaves + 1];
+        for (int pass = 0; pass < 2; ++pass) {
+            // First count the runs of each node, then fill them in.
+            int[] counts = new int[2 * mNumLeaves];
+            for (long key : order) {
+                final int run = (int)key;
+                int lo = mNumLeaves + mRunMaxLevels[run];
+                int hi = mNumLeaves + Math.min(mRunEndLevels[run], MAX_LEVEL + 1);
+                for (; lo < hi; lo /= 2, hi /= 2) {
+                    if ((lo & 1) != 0)
+                        addToNode(pass, counts, lo++, run);
+                    if ((hi & 1) != 0)
+                        addToNode(pass, counts, --hi, run);
+                }
+            }
+            if (pass == 0) {
+                for (int node = 0; node < counts.length; ++node)
+                    mNodeOffsets[node + 1] = mNodeOffsets[node] + counts[node];
+                mNodeRuns = new int[mNodeOffsets[counts.length]];
+            }
+        }
+    }
+
+    private void addToNode(int pass, int[] counts, int node, int run) {
+        if (pass == 1)
+            mNodeRuns[mNodeOffsets[node] + counts[node]] = run;
+        ++counts[node];
+    }
+}
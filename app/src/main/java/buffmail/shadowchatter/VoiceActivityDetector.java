@@ -0,0 +1,121 @@
+package buffmail.shadowchatter;
+
+// Streaming voice activity detector working on frame gains (Cf. SoundFile.getFrameGains()).
+//
+// Frames are fed one at a time, as they get decoded or recorded, and the detector reports the
+// boundary between two utterances as soon as it is certain, i.e. once speech resumes after a long
+// enough silence. The boundary is put in the middle of the silence, like the batch scan this
+// replaces did. Only a few values are kept between frames, whatever the length of the stream.
+//
+// Instead of normalizing the gains over the whole file, the detector tracks a noise floor (which
+// follows quiet frames down quickly and everything else up slowly) and a speech level (which
+// follows loud frames up immediately and decays slowly). A frame is silent when its smoothed gain
+// is below SILENCE_RATIO of the way from the floor to the speech level. A short hangover keeps the
+// speech state over the tail of words, so that the floor doesn't adapt to it.
+class VoiceActivityDetector {
+    static final double SILENCE_RATIO = 0.1;  // Matches the 0.01 height of the batch scan.
+    static final double MIN_SILENCE_SEC = 0.2;
+    private static final double HANGOVER_SEC = 0.1;
+    private static final double FLOOR_RISE_SEC = 5.0;  // Time constant of the noise floor rise.
+    // Even slower rise during speech, so that the floor still catches up with a noise getting
+    // louder for good.
+    private static final double FLOOR_SPEECH_RISE_SEC = 30.0;
+    private static final double LEVEL_DECAY_SEC = 10.0;  // Time constant of the speech level decay.
+    private static final double MIN_MARGIN = 2.0;  // Gains this close to the floor are silent.
+
+    private final int mMinSilenceFrames;
+    private final int mHangoverFrames;
+    private final double mFloorRise;
+    private final double mFloorSpeechRise;
+    private final double mLevelDecay;
+
+    private int mNumFrames;  // Frames fed so far.
+    private int mPrevGain;  // Gains of the two previous frames, for smoothing.
+    private int mPrevPrevGain;
+    private double mFloor;
+    private double mLevel;
+    private boolean mHadSpeech;  // No boundary before the first utterance.
+    private int mHangover;  // Frames left before a quiet frame counts as silence.
+    private int mSilenceStartFrame;  // First frame of the current silence, or -1.
+    private double mLastLevel;  // Cf. getLevel().
+
+    VoiceActivityDetector(int sampleRate, int samplesPerFrame) {
+        double framesPerSec = (double)sampleRate / samplesPerFrame;
+        mMinSilenceFrames = Math.max((int)(MIN_SILENCE_SEC * framesPerSec + 0.5), 1);
+        mHangoverFrames = (int)(HANGOVER_SEC * framesPerSec + 0.5);
+        mFloorRise = 1.0 - Math.exp(-1.0 / (FLOOR_RISE_SEC * framesPerSec));
+        mFloorSpeechRise = 1.0 - Math.exp(-1.0 / (FLOOR_SPEECH_RISE_SEC * framesPerSec));
+        mLevelDecay = 1.0 - Math.exp(-1.0 / (LEVEL_DECAY_SEC * framesPerSec));
+        mNumFrames = 0;
+        mHadSpeech = false;
+        mHangover = 0;
+        mSilenceStartFrame = -1;
+    }
+
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Level of the last frame fed, relative to the noise floor and speech level at that time: the
+    // frame was quiet if it is not above SILENCE_RATIO. Cf. SilenceIndex.
+    double getLevel() {
+        return mLastLevel;
+    }
+
+    // Feed the gain of the next frame. Return the frame where a new chunk starts if a boundary
+    // was found, -1 otherwise.
+    int addFrame(int gain) {
+        final int frame = mNumFrames++;
+        // Trailing 3 frames average, instead of the centered one of the batch scan.
+        double smoothed;
+        if (frame == 0) {
+            smoothed = gain;
+            // The stream may start with speech: let the floor rise from the bottom instead.
+            mFloor = 1.0;
+            mLevel = 1.0;
+        } else if (frame == 1) {
+            smoothed = (mPrevGain + gain) / 2.0;
+        } else {
+            smoothed = (mPrevPrevGain + mPrevGain + gain) / 3.0;
+        }
+        mPrevPrevGain = mPrevGain;
+        mPrevGain = gain;
+
+        if (smoothed > mLevel) {
+            mLevel = smoothed;
+        } else {
+            mLevel += (smoothed - mLevel) * mLevelDecay;
+        }
+        final double range = Math.max(mLevel - mFloor, MIN_MARGIN / SILENCE_RATIO);
+        mLastLevel = (smoothed - mFloor) / range;
+        final boolean quiet = mLastLevel <= SILENCE_RATIO;
+
+        if (quiet) {
+            if (mHangover > 0) {
+                --mHangover;
+            } else {
+                // Only adapt to the background noise, not to the tail of the words.
+                if (smoothed < mFloor) {
+                    mFloor = Math.max((mFloor + smoothed) / 2, 1.0);
+                } else {
+                    mFloor += (smoothed - mFloor) * mFloorRise;
+                }
+            }
+            if (mSilenceStartFrame == -1) {
+                mSilenceStartFrame = frame;
+            }
+            return -1;
+        }
+
+        mFloor += (smoothed - mFloor) * mFloorSpeechRise;
+        mHangover = mHangoverFrames;
+        int boundary = -1;
+        if (mSilenceStartFrame != -1 && mHadSpeech &&
+                frame - mSilenceStartFrame >= mMinSilenceFrames) {
+            boundary = (frame + mSilenceStartFrame) / 2;
+        }
+        mSilenceStartFrame = -1;
+        mHadSpeech = true;
+        return boundary;
+    }
+}
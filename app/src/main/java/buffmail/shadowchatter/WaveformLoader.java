@@ -0,0 +1,90 @@
+package buffmail.shadowchatter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+
+import buffmail.shadowchatter.soundfile.GainNormalizer;
+import buffmail.shadowchatter.soundfile.SoundFile;
+
+// Computes the waveform of a file (its heights, Cf. GainNormalizer, and the levels of their
+// PeakPyramid) in the background, and hands it over to the UI thread once complete.
+//
+// Only the latest request matters: e.g. while decoding, a request for more frames makes the
+// previous ones useless, so they are skipped if not started yet, and their results dropped
+// otherwise.
+//
+// Must be created and used from the UI thread.
+class WaveformLoader {
+    interface Callback {
+        // Called on the UI thread.
+        void onWaveformLoaded(PeakPyramid peaks);
+    }
+
+    private final Handler mHandler = new Handler();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mLatest = new AtomicInteger();
+
+    // Load the waveform of the first numFrames frames of frameGains, which must not change
+    // meanwhile (e.g. while they are decoded).
+    void load(final int[] frameGains, final int numFrames, Callback callback) {
+        submit(new Loader(callback) {
+            byte[] getHeights() {
+                return GainNormalizer.normalize(frameGains, numFrames);
+            }
+        }, numFrames);
+    }
+
+    // Load the waveform of a decoded file, sharing its heights.
+    void load(final SoundFile soundFile, Callback callback) {
+        submit(new Loader(callback) {
+            byte[] getHeights() {
+                return soundFile.getNormalizedHeights();
+            }
+        }, soundFile.getNumFrames());
+    }
+
+    // Drop the results of the requests made so far.
+    void cancel() {
+        mLatest.incrementAndGet();
+    }
+
+    void release() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private abstract static class Loader {
+        final Callback mCallback;
+
+        Loader(Callback callback) {
+            mCallback = callback;
+        }
+
+        // Called from the loading thread.
+        abstract byte[] getHeights();
+    }
+
+    private void submit(final Loader loader, final int numFrames) {
+        final int request = mLatest.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (request != mLatest.get()) {
+                    return;
+                }
+                final PeakPyramid peaks = new PeakPyramid(loader.getHeights(), numFrames);
+                // All the levels the view may draw, so that it never builds one.
+                peaks.buildLevels(1 / WaveformView.MIN_ZOOM);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (request == mLatest.get()) {
+                            loader.mCallback.onWaveformLoaded(peaks);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
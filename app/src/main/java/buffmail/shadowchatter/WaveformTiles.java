@@ -0,0 +1,178 @@
+package buffmail.shadowchatter;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Process;
+import android.util.LruCache;
+
+// Cache of the static part of the waveform (Cf. Painter) as bitmaps of TILE_WIDTH pixels, so
+// that scrolling only blits a few bitmaps instead of drawing every pixel column again.
+//
+// Tiles are kept per zoom in an LRU cache under a memory budget, and rendered by a background
+// thread: until all the visible ones are ready, the caller draws the waveform directly. Tiles
+// next to the visible ones are rendered as well, so that scrolling rarely gets there first.
+//
+// Must be used from a single thread with a Looper, e.g. the render thread of WaveformView (but
+// for the painters).
+class WaveformTiles {
+    static final int TILE_WIDTH = 256;
+    private static final int NUM_PREFETCHED = 1;  // On each side of the visible tiles.
+
+    interface Painter {
+        // Draw the pixels from start (included) to start + width of the waveform at zoom, from
+        // x = 0 of canvas, using the buffers of the calling thread. Called from the UI thread and
+        // from the rendering thread at once, so must not change.
+        void paint(Canvas canvas, int start, int width, int height, double zoom, Buffers buffers);
+    }
+
+    // Scratch space of a thread painting, so that painting allocates nothing once it is large
+    // enough.
+    static final class Buffers {
+        float[] mLines = new float[0];  // Points of a line per pixel column, drawn at once.
+
+        void ensureWidth(int width) {
+            if (mLines.length < 4 * width) {
+                mLines = new float[4 * width];
+            }
+        }
+    }
+
+    private static final class Key {
+        double mZoom;
+        int mIndex;
+
+        Key(double zoom, int index) {
+            set(zoom, index);
+        }
+
+        Key set(double zoom, int index) {
+            mZoom = zoom;
+            mIndex = index;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key)o;
+            return mZoom == key.mZoom && mIndex == key.mIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            final long bits = Double.doubleToLongBits(mZoom);
+            return 31 * (int)(bits ^ (bits >>> 32)) + mIndex;
+        }
+    }
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mOnTileReady;
+    private final LruCache<Key, Bitmap> mTiles;
+    private final Set<Key> mPending = new HashSet<>();
+    private ExecutorService mExecutor;
+    // The tiles are those of mPainter and mHeight. Tiles requested for another zoom than the last
+    // drawn one are skipped (e.g. during a pinch).
+    private Painter mPainter;
+    private int mHeight;
+    private volatile double mZoom;
+    private final Key mLookupKey = new Key(0, 0);  // Never put in mTiles or mPending.
+    private final Buffers mBuffers = new Buffers();  // Of the rendering thread.
+
+    // onTileReady is run (on the thread using the tiles) once a tile is rendered, e.g. to draw a
+    // frame again.
+    WaveformTiles(Runnable onTileReady) {
+        mOnTileReady = onTileReady;
+        final int maxBytes = (int)Math.min(Runtime.getRuntime().maxMemory() / 8,
+                Integer.MAX_VALUE);
+        mTiles = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    // Draw the pixels from offset to offset + width of the waveform painted by painter at zoom,
+    // length pixels long, if all their tiles are ready. Return false (and draw nothing)
+    // otherwise, in which case the missing tiles are rendered in the background.
+    boolean draw(Canvas canvas, Painter painter, double zoom, int offset, int width, int height,
+                 int length) {
+        if (painter != mPainter || height != mHeight) {
+            mTiles.evictAll();
+            mPending.clear();  // Their tiles will be dropped.
+            mPainter = painter;
+            mHeight = height;
+        }
+        mZoom = zoom;
+        if (width <= 0 || height <= 0)
+            return true;
+
+        final int first = offset / TILE_WIDTH;
+        final int last = (offset + width - 1) / TILE_WIDTH;
+        boolean complete = true;
+        for (int i = first; i <= last && complete; ++i)
+            complete = mTiles.get(mLookupKey.set(zoom, i)) != null;
+        if (complete) {
+            for (int i = first; i <= last; ++i) {
+                canvas.drawBitmap(mTiles.get(mLookupKey.set(zoom, i)),
+                        i * TILE_WIDTH - offset, 0, null);
+            }
+        }
+
+        final int numTiles = (length + TILE_WIDTH - 1) / TILE_WIDTH;
+        for (int i = Math.max(first - NUM_PREFETCHED, 0);
+             i <= Math.min(last + NUM_PREFETCHED, numTiles - 1); ++i) {
+            mLookupKey.set(zoom, i);
+            if (!mPending.contains(mLookupKey) && mTiles.get(mLookupKey) == null)
+                render(new Key(zoom, i), Math.min(length - i * TILE_WIDTH, TILE_WIDTH));
+        }
+        return complete;
+    }
+
+    // Drop the tiles and stop the rendering thread, e.g. when the view is detached.
+    void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mTiles.evictAll();
+        mPending.clear();
+        mPainter = null;
+    }
+
+    private void render(final Key key, final int width) {
+        if (mExecutor == null)
+            mExecutor = Executors.newSingleThreadExecutor();
+        mPending.add(key);
+        final Painter painter = mPainter;
+        final int height = mHeight;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Bitmap bitmap = null;
+                if (key.mZoom == mZoom) {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    bitmap = Bitmap.createBitmap(TILE_WIDTH, height, Bitmap.Config.ARGB_8888);
+                    painter.paint(new Canvas(bitmap), key.mIndex * TILE_WIDTH, width, height,
+                            key.mZoom, mBuffers);
+                }
+                final Bitmap tile = bitmap;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mPending.remove(key);
+                        if (tile != null && painter == mPainter && height == mHeight) {
+                            mTiles.put(key, tile);
+                            mOnTileReady.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
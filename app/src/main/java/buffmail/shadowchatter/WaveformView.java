@@ -21,16 +21,20 @@ import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
-import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
-import android.view.View;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 
-import buffmail.shadowchatter.soundfile.SoundFile;
-import buffmail.shadowchatter.SoundUtil.PlayChunk;
+import buffmail.shadowchatter.soundfile.GainNormalizer;
 
 /**
  * WaveformView is an Android view that displays a visual representation
@@ -44,18 +48,27 @@ import buffmail.shadowchatter.SoundUtil.PlayChunk;
  *
  * WaveformView doesn't actually handle selection, but it will just display
  * the selected part of the waveform in a different color.
+ *
+ * The waveform is drawn on its own surface by a render thread, on the frames of its own
+ * Choreographer, so that the UI thread (buttons, layout) and drawing never wait for each other.
+ * The setters only change a Scene which is handed over to the render thread, and the playback
+ * cursor moves along a PlaybackClock on every frame without the UI thread.
  */
-public class WaveformView extends View {
+public class WaveformView extends SurfaceView implements SurfaceHolder.Callback {
     public interface WaveformListener {
         public void waveformFling(float x);
-        public void waveformDraw();
-        public void waveformZoomIn();
-        public void waveformZoomOut();
+        public void waveformZoom(float scale, float focusX);
     };
 
     private static final String TAG = "WaveformView";
+    // Zoom factors (pixels per frame).
+    static final double MIN_ZOOM = 1.0 / 64;
+    private static final double MAX_ZOOM = 4.0;
+    // Width of the timecodes drawn from before the left edge (in dp), Cf. Painter.
+    private static final int TIMECODE_MARGIN = 30;
 
     // Colors
+    private int mBkgndColor;
     private Paint mGridPaint;
     private Paint mSelectedLinePaint;
     private Paint mUnselectedLinePaint;
@@ -64,34 +77,43 @@ public class WaveformView extends View {
     private Paint mPlaybackLinePaint;
     private Paint mTimecodePaint;
 
-    private SoundFile mSoundFile;
-    private int[] mLenByZoomLevel;
-    private double[][] mValuesByZoomLevel;
-    private double[] mZoomFactorByZoomLevel;
-    private int[] mHeightsAtThisZoomLevel;
-    private int mZoomLevel;
-    private int mNumZoomLevels;
+    private PeakPyramid mPeaks;
+    private int mNumFrames;
+    private double mZoom;  // Pixels per frame.
+    private Painter mPainter;  // null when what it draws changed.
     private int mSampleRate;
     private int mSamplesPerFrame;
     private int mOffset;
     private int mSelectionStart;
     private int mSelectionEnd;
-    private int mPlaybackPos;
+    private PlaybackClock mPlaybackClock;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
     private float mDensity;
-    private float mInitialScaleSpan;
     private WaveformListener mListener;
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
     private boolean mInitialized;
-    private PlayChunk[] mPlayChunks;
+    private ChunkArray mPlayChunks;
+
+    // The last scene published to the render thread, Cf. publish().
+    private final Object mSceneLock = new Object();
+    private final Scene mPublishedScene = new Scene();
+    // Held by the render thread while it draws on the surface, Cf. surfaceDestroyed().
+    private final Object mSurfaceLock = new Object();
+    private boolean mHasSurface;
+    private HandlerThread mRenderThread;
+    private Renderer mRenderer;
 
     public WaveformView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
         // We don't want keys, the markers get these
         setFocusable(false);
+        getHolder().addCallback(this);
 
         Resources res = getResources();
+        mBkgndColor = res.getColor(R.color.waveform_bkgnd);
         mGridPaint = new Paint();
         mGridPaint.setAntiAlias(false);
         mGridPaint.setColor(res.getColor(R.color.grid_line));
@@ -133,20 +155,11 @@ public class WaveformView extends View {
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
                     public boolean onScaleBegin(ScaleGestureDetector d) {
                         Log.v("Ringdroid", "ScaleBegin " + d.getCurrentSpanX());
-                        mInitialScaleSpan = Math.abs(d.getCurrentSpanX());
                         return true;
                     }
                     public boolean onScale(ScaleGestureDetector d) {
-                        float scale = Math.abs(d.getCurrentSpanX());
-                        Log.v("Ringdroid", "Scale " + (scale - mInitialScaleSpan));
-                        if (scale - mInitialScaleSpan > 40) {
-                            mListener.waveformZoomIn();
-                            mInitialScaleSpan = scale;
-                        }
-                        if (scale - mInitialScaleSpan < -40) {
-                            mListener.waveformZoomOut();
-                            mInitialScaleSpan = scale;
-                        }
+                        // Follow the fingers continuously.
+                        mListener.waveformZoom(d.getScaleFactor(), d.getFocusX());
                         return true;
                     }
                     public void onScaleEnd(ScaleGestureDetector d) {
@@ -155,12 +168,12 @@ public class WaveformView extends View {
                 }
         );
 
-        mSoundFile = null;
-        mLenByZoomLevel = null;
-        mValuesByZoomLevel = null;
-        mHeightsAtThisZoomLevel = null;
+        mPeaks = null;
+        mNumFrames = 0;
+        mZoom = 1.0;
+        mPainter = null;
         mOffset = 0;
-        mPlaybackPos = -1;
+        mPlaybackClock = PlaybackClock.STOPPED;
         mSelectionStart = 0;
         mSelectionEnd = 0;
         mDensity = 1.0f;
@@ -179,78 +192,85 @@ public class WaveformView extends View {
     }
 
     public boolean hasSoundFile() {
-        return mSoundFile != null;
+        return mPeaks != null;
     }
 
-    public void setSoundFile(SoundFile soundFile) {
-        mSoundFile = soundFile;
-        mSampleRate = mSoundFile.getSampleRate();
-        mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
-        computeDoublesForAllZoomLevels();
-        mHeightsAtThisZoomLevel = null;
+    public int getNumFrames() {
+        return mNumFrames;
     }
 
-    public void updatePlayChunks(PlayChunk[] playChunks) {
+    // Display peaks, e.g. of the part of a file decoded so far, or a placeholder until they are
+    // computed (Cf. WaveformLoader). They are swapped at once, and the zoom level is kept if the
+    // view already displays some frames.
+    void setPeaks(PeakPyramid peaks, int sampleRate, int samplesPerFrame) {
+        final int numFrames = peaks.getNumFrames();
+        mPeaks = peaks;
+        mPainter = null;
+        mNumFrames = numFrames;
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        if (!mInitialized) {
+            if (numFrames > 1000) {
+                mZoom = 0.5;
+            } else if (numFrames > 300) {
+                mZoom = 1.0;
+            } else {
+                mZoom = 2.0;
+            }
+            mInitialized = true;
+        }
+        publish();
+    }
+
+    public void updatePlayChunks(ChunkArray playChunks) {
         mPlayChunks = playChunks;
+        mPainter = null;
+        publish();
     }
 
     public boolean isInitialized() {
         return mInitialized;
     }
 
-    public int getZoomLevel() {
-        return mZoomLevel;
-    }
-
-    public void setZoomLevel(int zoomLevel) {
-        while (mZoomLevel > zoomLevel) {
-            zoomIn();
-        }
-        while (mZoomLevel < zoomLevel) {
-            zoomOut();
-        }
+    public double getZoom() {
+        return mZoom;
     }
 
     public boolean canZoomIn() {
-        return (mZoomLevel > 0);
+        return (mZoom < MAX_ZOOM);
     }
 
     public void zoomIn() {
-        if (canZoomIn()) {
-            mZoomLevel--;
-            mSelectionStart *= 2;
-            mSelectionEnd *= 2;
-            mHeightsAtThisZoomLevel = null;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter *= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
-        }
+        zoomBy(2.0, getMeasuredWidth() / 2);
     }
 
     public boolean canZoomOut() {
-        return (mZoomLevel < mNumZoomLevels - 1);
+        return (mZoom > MIN_ZOOM);
     }
 
     public void zoomOut() {
-        if (canZoomOut()) {
-            mZoomLevel++;
-            mSelectionStart /= 2;
-            mSelectionEnd /= 2;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter /= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            mHeightsAtThisZoomLevel = null;
-            invalidate();
+        zoomBy(0.5, getMeasuredWidth() / 2);
+    }
+
+    // Multiply the zoom by scale (within MIN_ZOOM and MAX_ZOOM), keeping the point of the waveform
+    // at focusX (in view coordinates) in place.
+    public void zoomBy(double scale, float focusX) {
+        double zoom = Math.max(MIN_ZOOM, Math.min(mZoom * scale, MAX_ZOOM));
+        double ratio = zoom / mZoom;
+        if (ratio == 1.0) {
+            return;
         }
+        mZoom = zoom;
+        mSelectionStart = (int)Math.round(mSelectionStart * ratio);
+        mSelectionEnd = (int)Math.round(mSelectionEnd * ratio);
+        mOffset = (int)Math.round((mOffset + focusX) * ratio - focusX);
+        if (mOffset < 0)
+            mOffset = 0;
+        publish();
     }
 
     public int maxPos() {
-        return mLenByZoomLevel[mZoomLevel];
+        return (int)(mNumFrames * mZoom);
     }
 
     public int secondsToFrames(double seconds) {
@@ -264,23 +284,23 @@ public class WaveformView extends View {
     }
 
     public int secondsToPixels(double seconds) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoom;
         return (int)(z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoom;
         return (pixels * (double)mSamplesPerFrame / (mSampleRate * z));
     }
 
     public int millisecsToPixels(int msecs) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoom;
         return (int)((msecs * 1.0 * mSampleRate * z) /
                 (1000.0 * mSamplesPerFrame) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoom;
         return (int)(pixels * (1000.0 * mSamplesPerFrame) /
                 (mSampleRate * z) + 0.5);
     }
@@ -289,6 +309,7 @@ public class WaveformView extends View {
         mSelectionStart = start;
         mSelectionEnd = end;
         mOffset = offset;
+        publish();
     }
 
     public int getStart() {
@@ -303,8 +324,10 @@ public class WaveformView extends View {
         return mOffset;
     }
 
-    public void setPlayback(int pos) {
-        mPlaybackPos = pos;
+    // Draw the playback cursor where clock says, on every frame while it runs.
+    void setPlaybackClock(PlaybackClock clock) {
+        mPlaybackClock = clock;
+        publish();
     }
 
     public void setListener(WaveformListener listener) {
@@ -312,298 +335,420 @@ public class WaveformView extends View {
     }
 
     public void recomputeHeights(float density) {
-        mHeightsAtThisZoomLevel = null;
         mDensity = density;
         mTimecodePaint.setTextSize((int)(12 * density));
-
-        invalidate();
+        mPainter = null;
+        publish();
     }
 
-    protected void drawWaveformLine(Canvas canvas,
-                                    int x, int y0, int y1,
-                                    Paint paint) {
-        canvas.drawLine(x, y0, x, y1, paint);
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mRenderThread = new HandlerThread("WaveformRenderer", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mRenderer = new Renderer(mRenderThread.getLooper());
+        publish();
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        if (mSoundFile == null)
-            return;
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mRenderer.quit();
+        mRenderer = null;
+        mRenderThread = null;
+    }
 
-        if (mHeightsAtThisZoomLevel == null)
-            computeIntsForThisZoomLevel();
-
-        // Draw waveform
-        int measuredWidth = getMeasuredWidth();
-        int measuredHeight = getMeasuredHeight();
-        int start = mOffset;
-        int width = mHeightsAtThisZoomLevel.length - start;
-        int ctr = measuredHeight / 2;
-
-        if (width > measuredWidth)
-            width = measuredWidth;
-
-
-        // Draw silence chunks bg
-        if (mPlayChunks != null)
-        {
-            for (int idx = 0; idx < mPlayChunks.length; ++idx) {
-                if (idx % 2 == 1)
-                    continue;
-
-                final PlayChunk chunk = mPlayChunks[idx];
-                final int absStartPos = secondsToPixels(chunk.startSec);
-                final int absEndPos = secondsToPixels(chunk.endSec);
-                final int startPos = absStartPos - start;
-                final int endPos = absEndPos - start;
-                if (startPos > width || endPos < 0)
-                    continue;
-
-                final Rect r = new Rect(startPos, 0, endPos, measuredHeight);
-                canvas.drawRect(r, mUnselectedBkgndLinePaint);
-            }
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mHasSurface = true;
         }
+    }
 
-        // Draw grid
-        double onePixelInSecs = pixelsToSeconds(1);
-        boolean onlyEveryFiveSecs = (onePixelInSecs > 1.0 / 50.0);
-        double fractionalSecs = mOffset * onePixelInSecs;
-        int integerSecs = (int) fractionalSecs;
-        int i = 0;
-        while (i < width) {
-            i++;
-            fractionalSecs += onePixelInSecs;
-            int integerSecsNew = (int) fractionalSecs;
-            if (integerSecsNew != integerSecs) {
-                integerSecs = integerSecsNew;
-                if (!onlyEveryFiveSecs || 0 == (integerSecs % 5)) {
-                    canvas.drawLine(i, 0, i, measuredHeight, mGridPaint);
-                }
-            }
-        }
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        publish();
+    }
 
-        // Draw waveform
-        for (i = 0; i < width; i++) {
-            Paint paint;
-            if (i + start >= mSelectionStart &&
-                    i + start < mSelectionEnd) {
-                paint = mSelectedLinePaint;
-            } else {
-                paint = mUnselectedLinePaint;
-            }
-            drawWaveformLine(
-                    canvas, i,
-                    ctr - mHeightsAtThisZoomLevel[start + i],
-                    ctr + 1 + mHeightsAtThisZoomLevel[start + i],
-                    paint);
-
-            if (i + start == mPlaybackPos) {
-                canvas.drawLine(i, 0, i, measuredHeight, mPlaybackLinePaint);
-            }
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // The surface must not be used once this returns, so wait for a frame being drawn.
+        synchronized (mSurfaceLock) {
+            mHasSurface = false;
         }
+    }
 
-        // If we can see the right edge of the waveform, draw the
-        // non-waveform area to the right as unselected
-        for (i = width; i < measuredWidth; i++) {
-            drawWaveformLine(canvas, i, 0, measuredHeight,
-                    mUnselectedBkgndLinePaint);
+    // Hand what the view shows over to the render thread, and have it draw a frame.
+    private void publish() {
+        if (mPainter == null && mPeaks != null) {
+            mPainter = new Painter(mPeaks, mPlayChunks, mSampleRate, mSamplesPerFrame, mDensity,
+                    mGridPaint, mUnselectedLinePaint, mUnselectedBkgndLinePaint, mTimecodePaint);
         }
-
-        // Draw borders
-        canvas.drawLine(
-                mSelectionStart - mOffset + 0.5f, 30,
-                mSelectionStart - mOffset + 0.5f, measuredHeight,
-                mBorderLinePaint);
-        canvas.drawLine(
-                mSelectionEnd - mOffset + 0.5f, 0,
-                mSelectionEnd - mOffset + 0.5f, measuredHeight - 30,
-                mBorderLinePaint);
-
-        // Draw timecode
-        double timecodeIntervalSecs = 1.0;
-        if (timecodeIntervalSecs / onePixelInSecs < 50) {
-            timecodeIntervalSecs = 5.0;
+        synchronized (mSceneLock) {
+            final Scene scene = mPublishedScene;
+            scene.mPainter = mPainter;
+            scene.mZoom = mZoom;
+            scene.mOffset = mOffset;
+            scene.mSelectionStart = mSelectionStart;
+            scene.mSelectionEnd = mSelectionEnd;
+            scene.mLength = maxPos();
+            scene.mPlaybackClock = mPlaybackClock;
+            scene.mSampleRate = mSampleRate;
+            scene.mSamplesPerFrame = mSamplesPerFrame;
+            scene.mWidth = mSurfaceWidth;
+            scene.mHeight = mSurfaceHeight;
         }
-        if (timecodeIntervalSecs / onePixelInSecs < 50) {
-            timecodeIntervalSecs = 15.0;
+        if (mRenderer != null) {
+            mRenderer.requestFrame();
         }
+    }
 
-        // Draw grid
-        fractionalSecs = mOffset * onePixelInSecs;
-        int integerTimecode = (int) (fractionalSecs / timecodeIntervalSecs);
-        i = 0;
-        while (i < width) {
-            i++;
-            fractionalSecs += onePixelInSecs;
-            integerSecs = (int) fractionalSecs;
-            int integerTimecodeNew = (int) (fractionalSecs /
-                    timecodeIntervalSecs);
-            if (integerTimecodeNew != integerTimecode) {
-                integerTimecode = integerTimecodeNew;
-
-                // Turn, e.g. 67 seconds into "1:07"
-                String timecodeMinutes = "" + (integerSecs / 60);
-                String timecodeSeconds = "" + (integerSecs % 60);
-                if ((integerSecs % 60) < 10) {
-                    timecodeSeconds = "0" + timecodeSeconds;
-                }
-                String timecodeStr = timecodeMinutes + ":" + timecodeSeconds;
-                float offset = (float) (
-                        0.5 * mTimecodePaint.measureText(timecodeStr));
-                canvas.drawText(timecodeStr,
-                        i - offset,
-                        (int)(12 * mDensity),
-                        mTimecodePaint);
-            }
+    /**
+     * What a frame shows. The UI thread publishes its changes to one, and the render thread draws
+     * from its own copy of it: neither waits for the other but while copying it.
+     */
+    private static final class Scene {
+        Painter mPainter;  // null when there is nothing to draw yet.
+        double mZoom;
+        int mOffset;
+        int mSelectionStart;
+        int mSelectionEnd;
+        int mLength;  // Of the waveform, Cf. maxPos().
+        PlaybackClock mPlaybackClock = PlaybackClock.STOPPED;
+        int mSampleRate;
+        int mSamplesPerFrame;
+        int mWidth;  // Of the surface.
+        int mHeight;
+
+        void set(Scene scene) {
+            mPainter = scene.mPainter;
+            mZoom = scene.mZoom;
+            mOffset = scene.mOffset;
+            mSelectionStart = scene.mSelectionStart;
+            mSelectionEnd = scene.mSelectionEnd;
+            mLength = scene.mLength;
+            mPlaybackClock = scene.mPlaybackClock;
+            mSampleRate = scene.mSampleRate;
+            mSamplesPerFrame = scene.mSamplesPerFrame;
+            mWidth = scene.mWidth;
+            mHeight = scene.mHeight;
         }
 
-        if (mListener != null) {
-            mListener.waveformDraw();
+        int millisecsToPixels(int msecs) {
+            return (int)((msecs * 1.0 * mSampleRate * mZoom) /
+                    (1000.0 * mSamplesPerFrame) + 0.5);
         }
     }
 
     /**
-     * Called once when a new sound file is added
+     * Draws the published scene on the surface, from the render thread, on the next frame after
+     * each change, and on every frame while the playback cursor moves. Everything but
+     * requestFrame() and quit() runs on the render thread.
      */
-    private void computeDoublesForAllZoomLevels() {
-        int numFrames = mSoundFile.getNumFrames();
-        int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double)(
-                    (frameGains[0] / 2.0) +
-                            (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double)(
-                        (frameGains[i - 1] / 3.0) +
-                                (frameGains[i    ] / 3.0) +
-                                (frameGains[i + 1] / 3.0));
+    private final class Renderer implements Choreographer.FrameCallback {
+        private final Handler mHandler;
+        private Choreographer mChoreographer;
+        private WaveformTiles mTiles;
+        private final WaveformTiles.Buffers mBuffers = new WaveformTiles.Buffers();
+        private final Scene mScene = new Scene();  // The copy being drawn.
+        private boolean mFrameScheduled;
+        private final Runnable mScheduleFrame = new Runnable() {
+            public void run() {
+                scheduleFrame();
             }
-            smoothedGains[numFrames - 1] = (double)(
-                    (frameGains[numFrames - 2] / 2.0) +
-                            (frameGains[numFrames - 1] / 2.0));
+        };
+
+        Renderer(Looper looper) {
+            mHandler = new Handler(looper);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    // Both are bound to the thread they are created on.
+                    mChoreographer = Choreographer.getInstance();
+                    mTiles = new WaveformTiles(mScheduleFrame);
+                }
+            });
         }
 
-        // Make sure the range is no more than 0 - 255
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
+        // Draw the published scene on the next frame. May be called from any thread.
+        void requestFrame() {
+            mHandler.post(mScheduleFrame);
+        }
+
+        // Stop the render thread once it is done with the frame being drawn.
+        void quit() {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mChoreographer.removeFrameCallback(Renderer.this);
+                    mTiles.release();
+                    Looper.myLooper().quit();
+                }
+            });
+        }
+
+        private void scheduleFrame() {
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback(this);
             }
         }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            synchronized (mSceneLock) {
+                mScene.set(mPublishedScene);
+            }
+            synchronized (mSurfaceLock) {
+                if (!mHasSurface)
+                    return;
+                final SurfaceHolder holder = getHolder();
+                final Canvas canvas = holder.lockCanvas();
+                if (canvas == null)
+                    return;
+                try {
+                    draw(canvas, frameTimeNanos);
+                } finally {
+                    holder.unlockCanvasAndPost(canvas);
+                }
+            }
+            if (mScene.mPlaybackClock.isRunning()) {
+                scheduleFrame();
+            }
         }
 
-        // Build histogram of 256 bins and figure out the new scaled max
-        maxGain = 0;
-        int gainHist[] = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int)(smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
+        private void draw(Canvas canvas, long frameTimeNanos) {
+            final Scene scene = mScene;
+            canvas.drawColor(mBkgndColor);
+            if (scene.mPainter == null)
+                return;
+
+            // Draw waveform
+            int measuredWidth = scene.mWidth;
+            int measuredHeight = scene.mHeight;
+            int start = scene.mOffset;
+            int width = scene.mLength - start;
+
+            if (width > measuredWidth)
+                width = measuredWidth;
+            mBuffers.ensureWidth(measuredWidth);
+
+            // Draw chunks bg, grid, waveform and timecode from the tiles, or directly until they
+            // are rendered.
+            final Painter painter = scene.mPainter;
+            if (!mTiles.draw(canvas, painter, scene.mZoom, start, width, measuredHeight,
+                    scene.mLength)) {
+                painter.paint(canvas, start, width, measuredHeight, scene.mZoom, mBuffers);
+            }
 
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
+            // Draw the selected part of the waveform over it
+            int selectionStart = Math.max(scene.mSelectionStart - start, 0);
+            int selectionEnd = Math.min(scene.mSelectionEnd - start, width);
+            if (selectionStart < selectionEnd) {
+                painter.drawColumns(canvas, start, selectionStart, selectionEnd, measuredHeight,
+                        scene.mZoom, mBuffers, mSelectedLinePaint);
+            }
 
-            gainHist[smoothedGain]++;
-        }
+            // Where the playback is on this very frame.
+            final PlaybackClock clock = scene.mPlaybackClock;
+            final int playbackPos = clock.isRunning() ?
+                    scene.millisecsToPixels(clock.getPositionMsec(frameTimeNanos)) : -1;
+            if (playbackPos >= start && playbackPos < start + width) {
+                canvas.drawLine(playbackPos - start, 0, playbackPos - start, measuredHeight,
+                        mPlaybackLinePaint);
+            }
 
-        // Re-calibrate the min to be 5%
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int)minGain];
-            minGain++;
-        }
+            // If we can see the right edge of the waveform, draw the
+            // non-waveform area to the right as unselected
+            if (width < measuredWidth) {
+                canvas.drawRect(Math.max(width, 0), 0, measuredWidth, measuredHeight,
+                        mUnselectedBkgndLinePaint);
+            }
 
-        // Re-calibrate the max to be 99%
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int)maxGain];
-            maxGain--;
+            // Draw borders
+            canvas.drawLine(
+                    scene.mSelectionStart - start + 0.5f, 30,
+                    scene.mSelectionStart - start + 0.5f, measuredHeight,
+                    mBorderLinePaint);
+            canvas.drawLine(
+                    scene.mSelectionEnd - start + 0.5f, 0,
+                    scene.mSelectionEnd - start + 0.5f, measuredHeight - 30,
+                    mBorderLinePaint);
         }
+    }
 
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
+    /**
+     * Draws the parts of the waveform which don't change while scrolling or playing, for a
+     * given sound file, chunks and density. It keeps its own copy of everything it draws from,
+     * so that it can also draw the tiles in the background (Cf. WaveformTiles).
+     *
+     * Not private for WaveformPainterAllocationTest.
+     */
+    static final class Painter implements WaveformTiles.Painter {
+        private final PeakPyramid mPeaks;
+        private final ChunkArray mPlayChunks;
+        private final int mSampleRate;
+        private final int mSamplesPerFrame;
+        private final float mDensity;
+        private final Paint mGridPaint;
+        private final Paint mLinePaint;
+        private final Paint mBkgndLinePaint;
+        private final Paint mTimecodePaint;
+        // Timecode of each second, built once drawn. They are immutable, so threads racing to
+        // build the same one only waste it.
+        private final Timecode[] mTimecodes;
+
+        Painter(PeakPyramid peaks, ChunkArray playChunks, int sampleRate, int samplesPerFrame,
+                float density, Paint gridPaint, Paint linePaint, Paint bkgndLinePaint,
+                Paint timecodePaint) {
+            mPeaks = peaks;
+            mPlayChunks = playChunks;
+            mSampleRate = sampleRate;
+            mSamplesPerFrame = samplesPerFrame;
+            mDensity = density;
+            mGridPaint = new Paint(gridPaint);
+            mLinePaint = new Paint(linePaint);
+            mBkgndLinePaint = new Paint(bkgndLinePaint);
+            mTimecodePaint = new Paint(timecodePaint);
+            final int durationSecs = (int)Math.ceil(
+                    (double)peaks.getNumFrames() * samplesPerFrame / sampleRate);
+            mTimecodes = new Timecode[durationSecs + 1];
         }
 
-        mNumZoomLevels = 5;
-        mLenByZoomLevel = new int[5];
-        mZoomFactorByZoomLevel = new double[5];
-        mValuesByZoomLevel = new double[5][];
-
-        // Level 0 is doubled, with interpolated values
-        mLenByZoomLevel[0] = numFrames * 2;
-        mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
-        }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
+        @Override
+        public void paint(Canvas canvas, int start, int width, int height, double zoom,
+                          WaveformTiles.Buffers buffers) {
+            if (width <= 0)
+                return;
+            buffers.ensureWidth(width);
+
+            // Draw silence chunks bg
+            if (mPlayChunks != null)
+            {
+                // Only go through the visible chunks.
+                final int firstIdx = mPlayChunks.indexAt(pixelsToSeconds(start, zoom));
+                final int endIdx = mPlayChunks.getEndIndex(pixelsToSeconds(start + width, zoom));
+                for (int idx = firstIdx; idx < endIdx; ++idx) {
+                    if (idx % 2 == 1)
+                        continue;
+
+                    final int absStartPos = secondsToPixels(mPlayChunks.getStartSec(idx), zoom);
+                    final int absEndPos = secondsToPixels(mPlayChunks.getEndSec(idx), zoom);
+                    final int startPos = absStartPos - start;
+                    final int endPos = absEndPos - start;
+
+                    canvas.drawRect(startPos, 0, endPos, height, mBkgndLinePaint);
+                }
+            }
+
+            // Draw grid, on the first pixel of each second. The seconds are computed from the
+            // absolute position of each pixel, so that the tiles draw the same lines as a direct
+            // paint, including on their first column.
+            double onePixelInSecs = pixelsToSeconds(1, zoom);
+            boolean onlyEveryFiveSecs = (onePixelInSecs > 1.0 / 50.0);
+            int integerSecs = (int) pixelsToSeconds(start - 1, zoom);
+            for (int x = 0; x < width; x++) {
+                int integerSecsNew = (int) pixelsToSeconds(start + x, zoom);
+                if (integerSecsNew != integerSecs) {
+                    integerSecs = integerSecsNew;
+                    if (!onlyEveryFiveSecs || 0 == (integerSecs % 5)) {
+                        canvas.drawLine(x, 0, x, height, mGridPaint);
+                    }
+                }
+            }
+
+            // Draw waveform
+            drawColumns(canvas, start, 0, width, height, zoom, buffers, mLinePaint);
+
+            // Draw timecode
+            double timecodeIntervalSecs = 1.0;
+            if (timecodeIntervalSecs / onePixelInSecs < 50) {
+                timecodeIntervalSecs = 5.0;
+            }
+            if (timecodeIntervalSecs / onePixelInSecs < 50) {
+                timecodeIntervalSecs = 15.0;
+            }
+
+            // Start a bit before, for the timecodes straddling the left edge.
+            int i = -(int)(TIMECODE_MARGIN * mDensity);
+            double fractionalSecs = (start + i) * onePixelInSecs;
+            int integerTimecode = (int) Math.floor(fractionalSecs / timecodeIntervalSecs);
+            while (i < width) {
+                i++;
+                fractionalSecs += onePixelInSecs;
+                integerSecs = (int) fractionalSecs;
+                int integerTimecodeNew = (int) Math.floor(fractionalSecs /
+                        timecodeIntervalSecs);
+                if (integerTimecodeNew != integerTimecode) {
+                    integerTimecode = integerTimecodeNew;
+                    if (integerTimecode <= 0 || integerSecs >= mTimecodes.length)
+                        continue;  // No timecode at the start (or past the end) of the file.
+
+                    Timecode timecode = getTimecode(integerSecs);
+                    canvas.drawText(timecode.mText,
+                            i - timecode.mHalfWidth,
+                            (int)(12 * mDensity),
+                            mTimecodePaint);
+                }
+            }
         }
 
-        // Level 1 is normal
-        mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < mLenByZoomLevel[1]; i++) {
-            mValuesByZoomLevel[1][i] = heights[i];
+        /**
+         * Draw the waveform of the pixels from start + from (included) to start + to, at x =
+         * from to to of canvas, in a single batch
+         */
+        void drawColumns(Canvas canvas, int start, int from, int to, int height, double zoom,
+                         WaveformTiles.Buffers buffers, Paint paint) {
+            buffers.ensureWidth(to - from);
+            float[] lines = buffers.mLines;
+            int ctr = height / 2;
+            int halfHeight = (height / 2) - 1;
+            int numPoints = 0;
+            for (int i = from; i < to; i++) {
+                int peak = mPeaks.getHeight((start + i) / zoom, (start + i + 1) / zoom);
+                int columnHeight = peak * halfHeight / GainNormalizer.MAX_HEIGHT;
+                lines[numPoints++] = i;
+                lines[numPoints++] = ctr - columnHeight;
+                lines[numPoints++] = i;
+                lines[numPoints++] = ctr + 1 + columnHeight;
+            }
+            canvas.drawLines(lines, 0, numPoints, paint);
         }
 
-        // 3 more levels are each halved
-        for (int j = 2; j < 5; j++) {
-            mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
-                mValuesByZoomLevel[j][i] =
-                        0.5 * (mValuesByZoomLevel[j - 1][2 * i] +
-                                mValuesByZoomLevel[j - 1][2 * i + 1]);
+        private Timecode getTimecode(int secs) {
+            Timecode timecode = mTimecodes[secs];
+            if (timecode == null) {
+                // Turn, e.g. 67 seconds into "1:07"
+                String timecodeMinutes = "" + (secs / 60);
+                String timecodeSeconds = "" + (secs % 60);
+                if ((secs % 60) < 10) {
+                    timecodeSeconds = "0" + timecodeSeconds;
+                }
+                String text = timecodeMinutes + ":" + timecodeSeconds;
+                timecode = new Timecode(text,
+                        (float) (0.5 * mTimecodePaint.measureText(text)));
+                mTimecodes[secs] = timecode;
             }
+            return timecode;
         }
 
-        if (numFrames > 1000) {
-            mZoomLevel = 2;
-        } else if (numFrames > 300) {
-            mZoomLevel = 1;
-        } else {
-            mZoomLevel = 0;
+        private static final class Timecode {
+            final String mText;
+            final float mHalfWidth;
+
+            Timecode(String text, float halfWidth) {
+                mText = text;
+                mHalfWidth = halfWidth;
+            }
         }
 
-        mInitialized = true;
-    }
+        private int secondsToPixels(double seconds, double zoom) {
+            return (int)(zoom * seconds * mSampleRate / mSamplesPerFrame + 0.5);
+        }
 
-    /**
-     * Called the first time we need to draw when the zoom level has changed
-     * or the screen is resized
-     */
-    private void computeIntsForThisZoomLevel() {
-        int halfHeight = (getMeasuredHeight() / 2) - 1;
-        mHeightsAtThisZoomLevel = new int[mLenByZoomLevel[mZoomLevel]];
-        for (int i = 0; i < mLenByZoomLevel[mZoomLevel]; i++) {
-            mHeightsAtThisZoomLevel[i] =
-                    (int)(mValuesByZoomLevel[mZoomLevel][i] * halfHeight);
+        private double pixelsToSeconds(int pixels, double zoom) {
+            return (pixels * (double)mSamplesPerFrame / (mSampleRate * zoom));
         }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package buffmail.shadowchatter.soundfile;
+
+import java.io.File;
+
+/**
+ * Decodes an audio file into 16 bits PCM samples for SoundFile.
+ *
+ * SoundFile.create() picks the first registered decoder whose canDecode() method accepts the
+ * input file. New decoders can be added with SoundFile.registerDecoder().
+ */
+public interface AudioDecoder {
+    // Destination of the decoded samples, implemented by SoundFile.
+    public interface Output {
+        // Must be called once, before any samples are written.
+        void setFormat(int sampleRate, int channels, long expectedNumSamples)
+                throws java.io.IOException;
+
+        // Append little endian interleaved samples. length must be a multiple of 2 * channels.
+        void write(byte[] data, int offset, int length) throws java.io.IOException;
+
+        // Use length bytes of file, starting at offset, as the samples (little endian and
+        // interleaved), without copying them. Replaces any call to write().
+        void setSamples(File file, long offset, long length) throws java.io.IOException;
+
+        // Number of samples (per channel) written so far.
+        long getNumSamples();
+
+        // Return false if decoding should stop immediately.
+        boolean reportProgress(double fractionComplete);
+    }
+
+    // Return true if this decoder can decode the given file. header contains the first bytes of
+    // the file (up to 12 bytes, fewer if the file is shorter).
+    boolean canDecode(File file, byte[] header);
+
+    // Decode file into output. Return as soon as output.reportProgress() returns false.
+    void decode(File file, Output output)
+            throws java.io.IOException, SoundFile.InvalidInputException;
+
+    // Decode the part of file between startUs and endUs (in microseconds) into output. The first
+    // sample written must be the one at startUs, and the expected number of samples given to
+    // output.setFormat() is the number of samples in the range. endUs is clamped to the duration
+    // of the file.
+    void decodeRange(File file, Output output, long startUs, long endUs)
+            throws java.io.IOException, SoundFile.InvalidInputException;
+
+    // Return the times (in microseconds) splitting file into at most maxRanges ranges which can
+    // be decoded independently with decodeRange(), e.g. at sync points. The first value is 0 and
+    // the last one is the duration of the file. Return null if the file should not be split.
+    long[] getSplitPoints(File file, int maxRanges)
+            throws java.io.IOException, SoundFile.InvalidInputException;
+}
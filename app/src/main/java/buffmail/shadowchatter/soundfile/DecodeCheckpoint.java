@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * State of an interrupted decoding, so that it can be resumed later on instead of starting over.
+ *
+ * A checkpoint is made of two files: the samples decoded before the point where the decoding
+ * resumes (raw PCM, as written by a PcmStore), and a small metadata file holding that point, the
+ * format of the samples and the gains of their complete frames. The metadata is only written
+ * once the samples are there, so a checkpoint interrupted while being saved is never loaded.
+ *
+ * The scan of a windowed file doesn't keep its samples: its checkpoints only have the metadata
+ * (Cf. mHasSamples), and resume on a frame boundary so that no sample is needed.
+ */
+class DecodeCheckpoint {
+    private static final int MAGIC = 0x53434b50;  // "SCKP"
+    private static final int VERSION = 3;
+
+    private final File mPcmFile;
+    private final File mMetaFile;
+    // Set by load() and save().
+    long mResumeUs;  // position in the input file where the decoding resumes.
+    boolean mHasSamples;  // false if getPcmFile() is not part of the checkpoint.
+    int mSampleRate;
+    int mChannels;
+    long mNumSamples;  // per channel, all of them before mResumeUs.
+    // Gains and raw features of the complete frames of these samples (Cf.
+    // FrameGainAccumulator).
+    int[] mFrameGains;
+    long[] mSumSquares;
+    int[] mPeaks;
+    int[] mZeroCrossings;
+
+    DecodeCheckpoint(File pcmFile, File metaFile) {
+        mPcmFile = pcmFile;
+        mMetaFile = metaFile;
+    }
+
+    File getPcmFile() {
+        return mPcmFile;
+    }
+
+    // Read the metadata of the checkpoint. Return false if there is no valid checkpoint, in
+    // which case its files are deleted.
+    boolean load() {
+        if (!mMetaFile.exists()) {
+            delete();
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mMetaFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Invalid checkpoint " + mMetaFile);
+                }
+                mResumeUs = in.readLong();
+                mHasSamples = in.readBoolean();
+                mSampleRate = in.readInt();
+                mChannels = in.readInt();
+                mNumSamples = in.readLong();
+                int numFrames = in.readInt();
+                mFrameGains = new int[numFrames];
+                mSumSquares = new long[numFrames];
+                mPeaks = new int[numFrames];
+                mZeroCrossings = new int[numFrames];
+                for (int i=0; i<numFrames; i++) {
+                    mFrameGains[i] = in.readInt();
+                    mSumSquares[i] = in.readLong();
+                    mPeaks[i] = in.readInt();
+                    mZeroCrossings[i] = in.readInt();
+                }
+            } finally {
+                in.close();
+            }
+            if (!mHasSamples) {
+                return true;
+            }
+            // A resumed decoding may have written more samples before being interrupted again.
+            if (!mPcmFile.exists()) {
+                throw new IOException("Missing PCM file " + mPcmFile);
+            }
+            RandomAccessFile file = new RandomAccessFile(mPcmFile, "rw");
+            try {
+                long numBytes = mNumSamples * 2 * mChannels;
+                if (file.length() < numBytes) {
+                    throw new IOException("Truncated PCM file " + mPcmFile);
+                }
+                file.setLength(numBytes);
+            } finally {
+                file.close();
+            }
+            return true;
+        } catch (IOException e) {
+            delete();
+            return false;
+        }
+    }
+
+    // Write the metadata of the checkpoint. If hasSamples, getPcmFile() must already hold the
+    // numSamples samples decoded before resumeUs. gains has the gains and features of their
+    // numFrames complete frames.
+    void save(long resumeUs, boolean hasSamples, int sampleRate, int channels, long numSamples,
+              FrameGainAccumulator gains, int numFrames) throws IOException {
+        File tmpFile = new File(mMetaFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(resumeUs);
+            out.writeBoolean(hasSamples);
+            out.writeInt(sampleRate);
+            out.writeInt(channels);
+            out.writeLong(numSamples);
+            out.writeInt(numFrames);
+            int[] frameGains = gains.getFrameGains();
+            long[] sumSquares = gains.getSumSquares();
+            int[] peaks = gains.getPeaks();
+            int[] zeroCrossings = gains.getZeroCrossings();
+            for (int i=0; i<numFrames; i++) {
+                out.writeInt(frameGains[i]);
+                out.writeLong(sumSquares[i]);
+                out.writeInt(peaks[i]);
+                out.writeInt(zeroCrossings[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(mMetaFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+    }
+
+    void delete() {
+        mMetaFile.delete();
+        mPcmFile.delete();
+    }
+
+    // Delete the metadata only, e.g. once the samples have been taken over by a PcmStore.
+    void deleteMetadata() {
+        mMetaFile.delete();
+    }
+}
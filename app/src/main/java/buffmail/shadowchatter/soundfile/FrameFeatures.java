@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package buffmail.shadowchatter.soundfile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Features of the frames of a sound file, finer than the frame gains for the speech
+ * segmentation (e.g. telling silence apart from quiet speech or noise):
+ * - the root mean square of the samples of all the channels, between 0 and 32768.
+ * - the peak absolute value of these samples, between 0 and 32768.
+ * - the zero crossing rate of the downmixed signal, i.e. the number of sign changes per sample,
+ *   between 0 and 1 (high for noise and fricatives, low for voiced speech).
+ *
+ * The values are stored in parallel arrays of primitives, indexed by frame, and are computed
+ * while decoding, in the same pass as the frame gains. The last frame is considered padded with
+ * 0s, like for the gains.
+ */
+public class FrameFeatures {
+    private final float[] mRms;
+    private final int[] mPeaks;
+    private final float[] mZeroCrossingRates;
+
+    FrameFeatures(float[] rms, int[] peaks, float[] zeroCrossingRates) {
+        mRms = rms;
+        mPeaks = peaks;
+        mZeroCrossingRates = zeroCrossingRates;
+    }
+
+    public int getNumFrames() {
+        return mRms.length;
+    }
+
+    // The arrays are shared, and should not be modified.
+    public float[] getRms() {
+        return mRms;
+    }
+
+    public int[] getPeaks() {
+        return mPeaks;
+    }
+
+    public float[] getZeroCrossingRates() {
+        return mZeroCrossingRates;
+    }
+
+    // Used by SoundFileCache, Cf. SoundFile.writeCacheHeader().
+    void write(DataOutputStream out) throws java.io.IOException {
+        out.writeInt(mRms.length);
+        for (int i=0; i<mRms.length; i++) {
+            out.writeFloat(mRms[i]);
+            out.writeInt(mPeaks[i]);
+            out.writeFloat(mZeroCrossingRates[i]);
+        }
+    }
+
+    static FrameFeatures read(DataInputStream in) throws java.io.IOException {
+        int numFrames = in.readInt();
+        float[] rms = new float[numFrames];
+        int[] peaks = new int[numFrames];
+        float[] zeroCrossingRates = new float[numFrames];
+        for (int i=0; i<numFrames; i++) {
+            rms[i] = in.readFloat();
+            peaks[i] = in.readInt();
+            zeroCrossingRates[i] = in.readFloat();
+        }
+        return new FrameFeatures(rms, peaks, zeroCrossingRates);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package buffmail.shadowchatter.soundfile;
+
+import java.util.Arrays;
+
+/**
+ * Computes the frame gains and the other frame features (Cf. FrameFeatures) of a stream of 16
+ * bits PCM samples, one buffer at a time.
+ *
+ * The gain of a frame is the square root of the maximum, over the samples of the frame, of the
+ * average absolute value of the channels. The buffers are read with plain array accesses, right
+ * after they have been decoded, so that the samples never need to be read back from the store.
+ * All the features are computed in that same pass, without any allocation (except when the
+ * arrays of frames need to grow).
+ *
+ * The features are accumulated as sums (of squares, of zero crossings) normalized by the frame
+ * size only in getFeatures(), so that the partial frames of two streams can be merged exactly.
+ */
+class FrameGainAccumulator {
+    private final int mChannels;
+    private final int mSamplesPerFrame;
+    // Per frame: gain, sum of the squares and peak absolute value of the samples (all channels),
+    // and number of zero crossings of the downmixed signal.
+    private int[] mFrameGains;
+    private long[] mSumSquares;
+    private int[] mPeaks;
+    private int[] mZeroCrossings;
+    private int mNumFrames;
+    // Maximum sum of the absolute values of the channels in the current frame, and number of
+    // samples (per channel) already in that frame.
+    private int mCurrentMax;
+    private int mCurrentNumSamples;
+    private long mCurrentSumSquares;
+    private int mCurrentPeak;
+    private int mCurrentZeroCrossings;
+    // Sign bit (0 or -1) of the previous downmixed sample, if any.
+    private int mLastSign;
+    private boolean mHasLastSign;
+
+    FrameGainAccumulator(int channels, int samplesPerFrame, int expectedNumFrames) {
+        this(channels, samplesPerFrame, expectedNumFrames, 0);
+    }
+
+    // Same as above, for a stream starting in the middle of a frame: the first skippedSamples
+    // samples of the first frame belong to someone else. The partial frames of two such streams
+    // can be combined with merge().
+    FrameGainAccumulator(int channels, int samplesPerFrame, int expectedNumFrames,
+                         int skippedSamples) {
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        int capacity = Math.max(expectedNumFrames, 16);
+        mFrameGains = new int[capacity];
+        mSumSquares = new long[capacity];
+        mPeaks = new int[capacity];
+        mZeroCrossings = new int[capacity];
+        mNumFrames = 0;
+        mCurrentMax = -1;
+        mCurrentNumSamples = skippedSamples;
+        mHasLastSign = false;
+    }
+
+    // Same as above, resuming after the first numFrames frames given by the arrays (e.g.
+    // computed by an interrupted pass, Cf. the getters below).
+    FrameGainAccumulator(int channels, int samplesPerFrame, int expectedNumFrames,
+                         int[] frameGains, long[] sumSquares, int[] peaks, int[] zeroCrossings,
+                         int numFrames) {
+        this(channels, samplesPerFrame, Math.max(expectedNumFrames, numFrames), 0);
+        System.arraycopy(frameGains, 0, mFrameGains, 0, numFrames);
+        System.arraycopy(sumSquares, 0, mSumSquares, 0, numFrames);
+        System.arraycopy(peaks, 0, mPeaks, 0, numFrames);
+        System.arraycopy(zeroCrossings, 0, mZeroCrossings, 0, numFrames);
+        mNumFrames = numFrames;
+    }
+
+    // Only the first getNumFrames() values are valid. The array may be replaced by a bigger one
+    // when new frames are added, but the values already set are never modified.
+    int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Same as getFrameGains(), for the raw values of the other features.
+    long[] getSumSquares() {
+        return mSumSquares;
+    }
+
+    int[] getPeaks() {
+        return mPeaks;
+    }
+
+    int[] getZeroCrossings() {
+        return mZeroCrossings;
+    }
+
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Return the features of the first getNumFrames() frames.
+    FrameFeatures getFeatures() {
+        float[] rms = new float[mNumFrames];
+        float[] zeroCrossingRates = new float[mNumFrames];
+        double frameSize = (double)mSamplesPerFrame * mChannels;
+        for (int i=0; i<mNumFrames; i++) {
+            rms[i] = (float)Math.sqrt(mSumSquares[i] / frameSize);
+            zeroCrossingRates[i] = (float)mZeroCrossings[i] / mSamplesPerFrame;
+        }
+        return new FrameFeatures(rms, Arrays.copyOf(mPeaks, mNumFrames), zeroCrossingRates);
+    }
+
+    // Samples preceding the stream (e.g. decoded to prime the decoder and then dropped). They
+    // don't belong to any frame, but a zero crossing at the start of the stream depends on them.
+    void setPrecedingSamples(byte[] data, int offset, int length) {
+        int last = offset + length - length % (2 * mChannels) - 2 * mChannels;
+        if (last >= offset) {
+            mLastSign = getMix(data, last) >> 31;
+            mHasLastSign = true;
+        }
+    }
+
+    void setPrecedingSamples(short[] samples, int offset, int length) {
+        int last = offset + length - length % mChannels - mChannels;
+        if (last >= offset) {
+            mLastSign = getMix(samples, last) >> 31;
+            mHasLastSign = true;
+        }
+    }
+
+    // Add little endian interleaved samples. length must be a multiple of 2 * channels.
+    void add(byte[] data, int offset, int length) {
+        final int channels = mChannels;
+        final int bytesPerSample = 2 * channels;
+        int end = offset + length - length % bytesPerSample;
+        int i = offset;
+        if (!mHasLastSign && i < end) {
+            mLastSign = getMix(data, i) >> 31;
+            mHasLastSign = true;
+        }
+        while (i < end) {
+            // Process the samples up to the end of the current frame (or of the buffer).
+            int numSamples = Math.min(mSamplesPerFrame - mCurrentNumSamples,
+                    (end - i) / bytesPerSample);
+            int runEnd = i + numSamples * bytesPerSample;
+            int max = mCurrentMax;
+            long sumSquares = mCurrentSumSquares;
+            int peak = mCurrentPeak;
+            int zeroCrossings = mCurrentZeroCrossings;
+            int lastSign = mLastSign;
+            if (channels == 1) {
+                for (; i < runEnd; i += 2) {
+                    int s = (short)((data[i] & 0xFF) | (data[i + 1] << 8));
+                    int a = Math.abs(s);
+                    max = Math.max(max, a);
+                    peak = Math.max(peak, a);
+                    sumSquares += s * s;
+                    int sign = s >> 31;
+                    zeroCrossings += (sign ^ lastSign) & 1;
+                    lastSign = sign;
+                }
+            } else if (channels == 2) {
+                for (; i < runEnd; i += 4) {
+                    int l = (short)((data[i] & 0xFF) | (data[i + 1] << 8));
+                    int r = (short)((data[i + 2] & 0xFF) | (data[i + 3] << 8));
+                    int al = Math.abs(l);
+                    int ar = Math.abs(r);
+                    max = Math.max(max, al + ar);
+                    peak = Math.max(peak, Math.max(al, ar));
+                    sumSquares += (long)(l * l) + r * r;
+                    int sign = (l + r) >> 31;
+                    zeroCrossings += (sign ^ lastSign) & 1;
+                    lastSign = sign;
+                }
+            } else {
+                while (i < runEnd) {
+                    int value = 0;
+                    int mix = 0;
+                    for (int k = 0; k < channels; k++, i += 2) {
+                        int s = (short)((data[i] & 0xFF) | (data[i + 1] << 8));
+                        int a = Math.abs(s);
+                        value += a;
+                        mix += s;
+                        peak = Math.max(peak, a);
+                        sumSquares += s * s;
+                    }
+                    max = Math.max(max, value);
+                    int sign = mix >> 31;
+                    zeroCrossings += (sign ^ lastSign) & 1;
+                    lastSign = sign;
+                }
+            }
+            mCurrentMax = max;
+            mCurrentSumSquares = sumSquares;
+            mCurrentPeak = peak;
+            mCurrentZeroCrossings = zeroCrossings;
+            mLastSign = lastSign;
+            mCurrentNumSamples += numSamples;
+            if (mCurrentNumSamples == mSamplesPerFrame) {
+                endFrame();
+            }
+        }
+    }
+
+    // Add interleaved samples. length must be a multiple of channels.
+    void add(short[] samples, int offset, int length) {
+        final int channels = mChannels;
+        int end = offset + length - length % channels;
+        int i = offset;
+        if (!mHasLastSign && i < end) {
+            mLastSign = getMix(samples, i) >> 31;
+            mHasLastSign = true;
+        }
+        while (i < end) {
+            int numSamples = Math.min(mSamplesPerFrame - mCurrentNumSamples, (end - i) / channels);
+            int runEnd = i + numSamples * channels;
+            int max = mCurrentMax;
+            long sumSquares = mCurrentSumSquares;
+            int peak = mCurrentPeak;
+            int zeroCrossings = mCurrentZeroCrossings;
+            int lastSign = mLastSign;
+            while (i < runEnd) {
+                int value = 0;
+                int mix = 0;
+                for (int k = 0; k < channels; k++, i++) {
+                    int s = samples[i];
+                    int a = Math.abs(s);
+                    value += a;
+                    mix += s;
+                    peak = Math.max(peak, a);
+                    sumSquares += s * s;
+                }
+                max = Math.max(max, value);
+                int sign = mix >> 31;
+                zeroCrossings += (sign ^ lastSign) & 1;
+                lastSign = sign;
+            }
+            mCurrentMax = max;
+            mCurrentSumSquares = sumSquares;
+            mCurrentPeak = peak;
+            mCurrentZeroCrossings = zeroCrossings;
+            mLastSign = lastSign;
+            mCurrentNumSamples += numSamples;
+            if (mCurrentNumSamples == mSamplesPerFrame) {
+                endFrame();
+            }
+        }
+    }
+
+    // Close the last (incomplete) frame, considering it padded with 0s, and return the gains of
+    // all the frames.
+    int[] finish() {
+        if (mCurrentNumSamples > 0) {
+            mCurrentMax = Math.max(mCurrentMax, 0);
+            endFrame();
+        }
+        mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+        return mFrameGains;
+    }
+
+    // Add the frames of other (both accumulators being finished), its first frame being frame
+    // firstFrame of this stream. The frames present in both, e.g. a frame split between two
+    // ranges of a file decoded in parallel, are combined.
+    void merge(FrameGainAccumulator other, int firstFrame) {
+        int numFrames = Math.max(mNumFrames, firstFrame + other.mNumFrames);
+        ensureCapacity(numFrames);
+        for (int i=0; i<other.mNumFrames; i++) {
+            int frame = firstFrame + i;
+            if (frame < mNumFrames) {
+                mFrameGains[frame] = Math.max(mFrameGains[frame], other.mFrameGains[i]);
+                mSumSquares[frame] += other.mSumSquares[i];
+                mPeaks[frame] = Math.max(mPeaks[frame], other.mPeaks[i]);
+                mZeroCrossings[frame] += other.mZeroCrossings[i];
+            } else {
+                mFrameGains[frame] = other.mFrameGains[i];
+                mSumSquares[frame] = other.mSumSquares[i];
+                mPeaks[frame] = other.mPeaks[i];
+                mZeroCrossings[frame] = other.mZeroCrossings[i];
+            }
+        }
+        mNumFrames = numFrames;
+    }
+
+    private void endFrame() {
+        ensureCapacity(mNumFrames + 1);
+        // The channels are averaged once per frame, which gives the same result as averaging
+        // every sample since integer division is monotonic.
+        mFrameGains[mNumFrames] = (int)Math.sqrt(mCurrentMax / mChannels);
+        mSumSquares[mNumFrames] = mCurrentSumSquares;
+        mPeaks[mNumFrames] = mCurrentPeak;
+        mZeroCrossings[mNumFrames] = mCurrentZeroCrossings;
+        mNumFrames++;
+        mCurrentMax = -1;
+        mCurrentNumSamples = 0;
+        mCurrentSumSquares = 0;
+        mCurrentPeak = 0;
+        mCurrentZeroCrossings = 0;
+    }
+
+    private void ensureCapacity(int numFrames) {
+        if (numFrames > mFrameGains.length) {
+            int capacity = Math.max(numFrames, mFrameGains.length * 2);
+            mFrameGains = Arrays.copyOf(mFrameGains, capacity);
+            mSumSquares = Arrays.copyOf(mSumSquares, capacity);
+            mPeaks = Arrays.copyOf(mPeaks, capacity);
+            mZeroCrossings = Arrays.copyOf(mZeroCrossings, capacity);
+        }
+    }
+
+    // Sum of the channels of the sample at offset.
+    private int getMix(byte[] data, int offset) {
+        int mix = 0;
+        for (int k = 0; k < mChannels; k++, offset += 2) {
+            mix += (short)((data[offset] & 0xFF) | (data[offset + 1] << 8));
+        }
+        return mix;
+    }
+
+    private int getMix(short[] samples, int offset) {
+        int mix = 0;
+        for (int k = 0; k < mChannels; k++) {
+            mix += samples[offset + k];
+        }
+        return mix;
+    }
+}
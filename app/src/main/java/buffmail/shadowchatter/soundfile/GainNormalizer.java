@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+/**
+ * Turns frame gains into display heights: the gains are smoothed over 3 frames, scaled to
+ * 0 - 255, and their range is recalibrated so that the quietest 5% of the frames are at 0 and
+ * the loudest 1% at the top. The heights are the square of the recalibrated values.
+ *
+ * The heights are quantized to a byte per frame (0 to MAX_HEIGHT, to be read with
+ * getHeight()), and the smoothed gains are recomputed in each pass instead of being stored, so
+ * that the only allocation is the result. SoundFile.getNormalizedHeights() caches the heights
+ * of a whole file.
+ */
+public class GainNormalizer {
+    public static final int MAX_HEIGHT = 255;
+
+    /**
+     * Return the heights of the first numFrames frames of frameGains.
+     */
+    public static byte[] normalize(int[] frameGains, int numFrames) {
+        byte[] heights = new byte[numFrames];
+        if (numFrames == 0)
+            return heights;
+
+        // Make sure the range is no more than 0 - 255
+        double maxGain = 1.0;
+        for (int i = 0; i < numFrames; i++) {
+            maxGain = Math.max(maxGain, getSmoothedGain(frameGains, numFrames, i));
+        }
+        double scaleFactor = 1.0;
+        if (maxGain > 255.0) {
+            scaleFactor = 255 / maxGain;
+        }
+
+        // Build histogram of 256 bins and figure out the new scaled max
+        maxGain = 0;
+        int gainHist[] = new int[256];
+        for (int i = 0; i < numFrames; i++) {
+            int smoothedGain =
+                    (int)(getSmoothedGain(frameGains, numFrames, i) * scaleFactor);
+            if (smoothedGain < 0)
+                smoothedGain = 0;
+            if (smoothedGain > 255)
+                smoothedGain = 255;
+
+            if (smoothedGain > maxGain)
+                maxGain = smoothedGain;
+
+            gainHist[smoothedGain]++;
+        }
+
+        // Re-calibrate the min to be 5%
+        double minGain = 0;
+        int sum = 0;
+        while (minGain < 255 && sum < numFrames / 20) {
+            sum += gainHist[(int)minGain];
+            minGain++;
+        }
+
+        // Re-calibrate the max to be 99%
+        sum = 0;
+        while (maxGain > 2 && sum < numFrames / 100) {
+            sum += gainHist[(int)maxGain];
+            maxGain--;
+        }
+
+        // Compute the heights
+        double range = maxGain - minGain;
+        for (int i = 0; i < numFrames; i++) {
+            double value = (getSmoothedGain(frameGains, numFrames, i) * scaleFactor - minGain) /
+                    range;
+            if (!(value > 0.0))  // Also if range is 0.
+                value = 0.0;
+            if (value > 1.0)
+                value = 1.0;
+            heights[i] = (byte)Math.round(value * value * MAX_HEIGHT);
+        }
+        return heights;
+    }
+
+    /**
+     * Return a quantized height as an int between 0 and MAX_HEIGHT.
+     */
+    public static int getHeight(byte height) {
+        return height & 0xff;
+    }
+
+    private static double getSmoothedGain(int[] frameGains, int numFrames, int i) {
+        if (numFrames <= 2)
+            return frameGains[i];
+        if (i == 0)
+            return (frameGains[0] / 2.0) + (frameGains[1] / 2.0);
+        if (i == numFrames - 1)
+            return (frameGains[i - 1] / 2.0) + (frameGains[i] / 2.0);
+        return (frameGains[i - 1] / 3.0) + (frameGains[i] / 3.0) + (frameGains[i + 1] / 3.0);
+    }
+}
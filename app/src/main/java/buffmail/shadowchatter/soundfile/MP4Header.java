@@ -231,19 +231,19 @@ public class MP4Header {
         mTime[1] = (byte)((time >> 16) & 0xFF);
         mTime[2] = (byte)((time >> 8) & 0xFF);
         mTime[3] = (byte)(time & 0xFF);
-        int numSamples = 1024 * (frame_size.length - 1);  // 1st frame does not contain samples.
-        int durationMS = (numSamples * 1000) / mSampleRate;
+        long numSamples = 1024L * (frame_size.length - 1);  // 1st frame does not contain samples.
+        long durationMS = (numSamples * 1000) / mSampleRate;
         if ((numSamples * 1000) % mSampleRate > 0) {  // round the duration up.
             durationMS++;
         }
         mNumSamples= new byte[] {
-                (byte)((numSamples >> 26) & 0XFF),
+                (byte)((numSamples >> 24) & 0XFF),
                 (byte)((numSamples >> 16) & 0XFF),
                 (byte)((numSamples >> 8) & 0XFF),
                 (byte)(numSamples & 0XFF)
         };
         mDurationMS = new byte[] {
-                (byte)((durationMS >> 26) & 0XFF),
+                (byte)((durationMS >> 24) & 0XFF),
                 (byte)((durationMS >> 16) & 0XFF),
                 (byte)((durationMS >> 8) & 0XFF),
                 (byte)(durationMS & 0XFF)
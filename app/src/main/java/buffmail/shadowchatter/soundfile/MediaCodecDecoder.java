@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decoder relying on the platform codecs (MediaExtractor and MediaCodec).
+ * It accepts any file whose extension is listed in SoundFile.getSupportedExtensions().
+ */
+class MediaCodecDecoder implements AudioDecoder {
+    @Override
+    public boolean canDecode(File file, byte[] header) {
+        return SoundFile.isFilenameSupported(file.getName().toLowerCase());
+    }
+
+    // Once the extractor is past the end of a range, how much more data to feed to the codec so that
+    // it flushes all the samples of the range.
+    private static final long RANGE_END_MARGIN_US = 500000;
+    // How much data before the start of a range to feed to the codec, so that the first samples
+    // of the range are decoded properly (e.g. with the MP3 bit reservoir). The samples decoded
+    // before the start of the range are then dropped.
+    private static final long RANGE_PREROLL_US = 200000;
+
+    @Override
+    public void decode(File inputFile, Output output)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        decodeRange(inputFile, output, 0, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void decodeRange(File inputFile, Output output, long startUs, long endUs)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaFormat format = selectAudioTrack(extractor, inputFile);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        // Only a part of the file is decoded: the samples before startUs and after endUs are
+        // dropped.
+        boolean isRange = startUs > 0 || endUs < durationUs;
+        endUs = Math.min(endUs, durationUs);
+        startUs = Math.min(startUs, endUs);
+        long startSample = Math.round(startUs * (double)sampleRate / 1000000);
+        // Expected total number of samples per channel.
+        long expectedNumSamples;
+        if (isRange) {
+            expectedNumSamples = Math.round(endUs * (double)sampleRate / 1000000) - startSample;
+        } else {
+            expectedNumSamples = (long)((durationUs / 1000000.0) * sampleRate + 0.5);
+        }
+        output.setFormat(sampleRate, channels, expectedNumSamples);
+        if (startUs > 0) {
+            extractor.seekTo(Math.max(startUs - RANGE_PREROLL_US, 0),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+
+        int bytesPerSample = 2 * channels;
+        int decodedSamplesSize = 0;  // size of the output buffer containing decoded samples.
+        byte[] decodedSamples = null;
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        int sample_size;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long presentation_time;
+        boolean done_reading = false;
+
+        Boolean firstSampleData = (startUs == 0);
+        while (true) {
+            // read data from file and feed it to the decoder input buffers.
+            int inputBufferIndex = codec.dequeueInputBuffer(100);
+            if (!done_reading && inputBufferIndex >= 0) {
+                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
+                presentation_time = extractor.getSampleTime();
+                if (firstSampleData
+                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
+                        && sample_size == 2) {
+                    // For some reasons on some devices (e.g. the Samsung S3) you should not
+                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
+                    // crash. These two bytes do not contain music data but basic info on the
+                    // stream (e.g. channel configuration and sampling frequency), and skipping them
+                    // seems OK with other devices (MediaCodec has already been configured and
+                    // already knows these parameters).
+                    extractor.advance();
+                } else if (sample_size < 0 || presentation_time > endUs + RANGE_END_MARGIN_US) {
+                    // All samples (of the range) have been read.
+                    codec.queueInputBuffer(
+                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    done_reading = true;
+                } else {
+                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
+                    extractor.advance();
+                    if (!output.reportProgress(
+                            (double)(presentation_time - startUs) / (endUs - startUs + 1))) {
+                        // We are asked to stop reading the file. Returning immediately.
+                        extractor.release();
+                        extractor = null;
+                        codec.stop();
+                        codec.release();
+                        codec = null;
+                        return;
+                    }
+                }
+                firstSampleData = false;
+            }
+
+            // Get decoded stream from the decoder output buffers.
+            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+            if (outputBufferIndex >= 0 && info.size > 0) {
+                if (decodedSamplesSize < info.size) {
+                    decodedSamplesSize = info.size;
+                    decodedSamples = new byte[decodedSamplesSize];
+                }
+                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
+                outputBuffers[outputBufferIndex].clear();
+                int offset = 0;
+                int size = info.size;
+                if (isRange) {
+                    if (output.getNumSamples() == 0) {
+                        // The extractor seeks to the previous sync frame (before the preroll):
+                        // drop the samples decoded before startUs.
+                        long bufferStartSample =
+                                Math.round(info.presentationTimeUs * (double)sampleRate / 1000000);
+                        long skipped = Math.max(startSample - bufferStartSample, 0);
+                        offset = (int)Math.min(skipped * bytesPerSample, size);
+                        size -= offset;
+                    }
+                    size = (int)Math.min(size,
+                            (expectedNumSamples - output.getNumSamples()) * bytesPerSample);
+                }
+                if (size > 0) {
+                    output.write(decodedSamples, offset, size);
+                }
+                codec.releaseOutputBuffer(outputBufferIndex, false);
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Subsequent data will conform to new format.
+                // We could check that codec.getOutputFormat(), which is the new output format,
+                // is what we expect.
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                    || output.getNumSamples() >= expectedNumSamples) {
+                // We got all the decoded data from the decoder. Stop here.
+                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
+                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
+                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
+                // calls to dequeueOutputBuffer may result in the application crashing, without
+                // even an exception being thrown... Hence the second check.
+                // (for mono AAC files, the S3 will actually double each sample, as if the stream
+                // was stereo. The resulting stream is half what it's supposed to be and with a much
+                // lower pitch.)
+                break;
+            }
+        }
+        extractor.release();
+        extractor = null;
+        codec.stop();
+        codec.release();
+        codec = null;
+    }
+
+    @Override
+    public long[] getSplitPoints(File inputFile, int maxRanges)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaFormat format = selectAudioTrack(extractor, inputFile);
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        long[] points = new long[maxRanges + 1];
+        int numPoints = 1;  // points[0] = 0
+        try {
+            // Split the file evenly, moving each split point back to the closest sync frame.
+            for (int i=1; i<maxRanges; i++) {
+                extractor.seekTo(durationUs * i / maxRanges, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                long time = extractor.getSampleTime();
+                if (time > points[numPoints - 1] && time < durationUs) {
+                    points[numPoints++] = time;
+                }
+            }
+        } finally {
+            extractor.release();
+        }
+        points[numPoints++] = durationUs;
+        if (numPoints < 3) {
+            return null;  // Not seekable, or too short.
+        }
+        return Arrays.copyOf(points, numPoints);
+    }
+
+    // Select the first audio track present in the file, and return its format.
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor, File inputFile)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        extractor.setDataSource(inputFile.getPath());
+        int numTracks = extractor.getTrackCount();
+        for (int i=0; i<numTracks; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        extractor.release();
+        throw new SoundFile.InvalidInputException("No audio track found in " + inputFile);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Read-only view of 16 bits interleaved PCM samples, addressed with 64 bits sample indexes.
+ *
+ * The samples are split in fixed-size pages, each of them a separate memory-mapped region of the
+ * file holding the samples. The size of the samples is then neither limited to the 2GB of a
+ * single ByteBuffer, nor does it require mapping one giant contiguous region. Pages always hold
+ * a whole number of samples (all channels included).
+ *
+ * The object itself is immutable, and can be read from several threads at once.
+ */
+public class PcmBuffer {
+    private final ByteBuffer[] mPages;  // little endian, all full except the last one.
+    private final ShortBuffer[] mShortPages;  // same as mPages, as shorts.
+    private final int mChannels;
+    private final int mSamplesPerPage;  // per channel.
+    private final long mNumSamples;  // per channel.
+
+    PcmBuffer(ByteBuffer[] pages, int channels, int samplesPerPage, long numSamples) {
+        mPages = pages;
+        mShortPages = new ShortBuffer[pages.length];
+        for (int i=0; i<pages.length; i++) {
+            pages[i].order(ByteOrder.LITTLE_ENDIAN);
+            mShortPages[i] = pages[i].asShortBuffer();
+        }
+        mChannels = channels;
+        mSamplesPerPage = samplesPerPage;
+        mNumSamples = numSamples;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    // Number of samples per channel.
+    public long getNumSamples() {
+        return mNumSamples;
+    }
+
+    // Return the given channel of the sample at sampleIndex.
+    public short get(long sampleIndex, int channel) {
+        int page = (int)(sampleIndex / mSamplesPerPage);
+        int offset = (int)(sampleIndex % mSamplesPerPage) * mChannels + channel;
+        return mShortPages[page].get(offset);
+    }
+
+    // Copy numSamples samples (per channel) starting at sampleIndex into dst, interleaved.
+    // Return the number of samples (per channel) copied, which is lower than numSamples at the
+    // end of the buffer.
+    public int get(long sampleIndex, short[] dst, int offset, int numSamples) {
+        numSamples = getNumAvailable(sampleIndex, numSamples);
+        int remaining = numSamples;
+        while (remaining > 0) {
+            int page = (int)(sampleIndex / mSamplesPerPage);
+            int pageOffset = (int)(sampleIndex % mSamplesPerPage);
+            int size = Math.min(remaining, mSamplesPerPage - pageOffset);
+            ShortBuffer samples = mShortPages[page].duplicate();
+            samples.position(pageOffset * mChannels);
+            samples.get(dst, offset, size * mChannels);
+            sampleIndex += size;
+            offset += size * mChannels;
+            remaining -= size;
+        }
+        return numSamples;
+    }
+
+    // Same as above, copying the samples as little endian bytes.
+    public int get(long sampleIndex, byte[] dst, int offset, int numSamples) {
+        numSamples = getNumAvailable(sampleIndex, numSamples);
+        int remaining = numSamples;
+        final int bytesPerSample = 2 * mChannels;
+        while (remaining > 0) {
+            int page = (int)(sampleIndex / mSamplesPerPage);
+            int pageOffset = (int)(sampleIndex % mSamplesPerPage);
+            int size = Math.min(remaining, mSamplesPerPage - pageOffset);
+            ByteBuffer bytes = mPages[page].duplicate();
+            bytes.position(pageOffset * bytesPerSample);
+            bytes.get(dst, offset, size * bytesPerSample);
+            sampleIndex += size;
+            offset += size * bytesPerSample;
+            remaining -= size;
+        }
+        return numSamples;
+    }
+
+    // Return a view of the first numSamples samples (per channel) of this buffer.
+    PcmBuffer prefix(long numSamples) {
+        int numPages = (int)((numSamples + mSamplesPerPage - 1) / mSamplesPerPage);
+        ByteBuffer[] pages = new ByteBuffer[numPages];
+        for (int i=0; i<numPages; i++) {
+            pages[i] = mPages[i].duplicate();
+        }
+        return new PcmBuffer(pages, mChannels, mSamplesPerPage, numSamples);
+    }
+
+    private int getNumAvailable(long sampleIndex, int numSamples) {
+        if (sampleIndex < 0 || sampleIndex >= mNumSamples) {
+            return 0;
+        }
+        return (int)Math.min(numSamples, mNumSamples - sampleIndex);
+    }
+}
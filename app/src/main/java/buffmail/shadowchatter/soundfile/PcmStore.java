@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Disk-backed storage for decoded 16 bits PCM data.
+ *
+ * The decoder appends its output sequentially to a temporary file, and once decoding is done
+ * the file is memory-mapped so that the samples can be read back through a PcmBuffer.
+ * This avoids keeping the whole decoded stream on the Java heap, and avoids reallocating and
+ * copying a growing buffer while decoding. The file is mapped in fixed-size pages, so that its
+ * size is not limited to 2GB.
+ *
+ * Several threads may also fill distinct regions of the store at the same time, Cf. Region.
+ */
+class PcmStore {
+    private static final int WRITE_BUFFER_SIZE = 1 << 18;  // 256kB
+    private static final int PAGE_SIZE = 1 << 25;  // 32MB, rounded down to whole samples.
+
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private Region mAppendRegion;  // region written by append(), starting at 0.
+    private long mNumBytes;  // total number of bytes appended so far.
+    private final int mChannels;
+    private final int mBytesPerPage;
+    private List<ByteBuffer> mPages;  // full pages mapped so far.
+    private PcmBuffer mSamples;  // set by finish().
+    private long mOffset;  // offset of the first sample in the file.
+    private boolean mKeepFile;  // true if the backing file is not ours to delete (e.g. cached).
+
+    private PcmStore(int channels) {
+        mChannels = channels;
+        mBytesPerPage = PAGE_SIZE / (2 * channels) * (2 * channels);
+        mPages = new ArrayList<ByteBuffer>();
+        mSamples = null;
+    }
+
+    private PcmStore(File file, int channels) throws IOException {
+        this(channels);
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mAppendRegion = new Region(0);
+        mNumBytes = 0;
+        mOffset = 0;
+        mKeepFile = false;
+    }
+
+    // Create a new, empty store for samples with the given number of channels, backed by a
+    // temporary file in the given directory.
+    static PcmStore create(File directory, int channels) throws IOException {
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        File file = File.createTempFile("decoded", ".pcm", directory);
+        return new PcmStore(file, channels);
+    }
+
+    // Reopen a file written by a previous store (e.g. the samples of an interrupted decoding), to
+    // append more samples to it or overwrite some regions. The store takes over the file, which
+    // is deleted when the store is released (unless moved).
+    static PcmStore reopen(File file, int channels) throws IOException {
+        PcmStore store = new PcmStore(channels);
+        store.mFile = file;
+        store.mRandomAccessFile = new RandomAccessFile(file, "rw");
+        store.mChannel = store.mRandomAccessFile.getChannel();
+        store.mNumBytes = store.mChannel.size();
+        store.mOffset = 0;
+        store.mAppendRegion = store.new Region(store.mNumBytes);
+        store.mKeepFile = false;
+        return store;
+    }
+
+    // Map an existing PCM file. The file will not be deleted when the store is released.
+    static PcmStore open(File file, int channels) throws IOException {
+        return open(file, 0, -1, channels);
+    }
+
+    // Map length bytes of an existing file, starting at offset (e.g. the data chunk of a WAV
+    // file). A negative length means up to the end of the file. The file will not be deleted when
+    // the store is released.
+    static PcmStore open(File file, long offset, long length, int channels) throws IOException {
+        PcmStore store = new PcmStore(channels);
+        store.mFile = file;
+        store.mRandomAccessFile = new RandomAccessFile(file, "r");
+        store.mChannel = store.mRandomAccessFile.getChannel();
+        store.mAppendRegion = null;
+        store.mOffset = offset;
+        store.mNumBytes = Math.max(store.mChannel.size() - offset, 0);
+        if (length >= 0 && length < store.mNumBytes) {
+            store.mNumBytes = length;
+        }
+        store.mKeepFile = true;
+        return store;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    long getNumBytes() {
+        return mNumBytes;
+    }
+
+    // Append raw PCM bytes (little endian 16 bits samples) at the end of the store.
+    void append(byte[] data, int offset, int length) throws IOException {
+        mAppendRegion.append(data, offset, length);
+        mNumBytes += length;
+    }
+
+    // Append 16 bits samples at the end of the store.
+    void append(short[] samples, int offset, int length) throws IOException {
+        mAppendRegion.append(samples, offset, length);
+        mNumBytes += 2 * length;
+    }
+
+    // Return a new region of the store starting at byte offset. Once all the regions are
+    // written (and flushed), setNumBytes() must be called with the total size of the store.
+    Region createRegion(long offset) {
+        return new Region(offset);
+    }
+
+    void setNumBytes(long numBytes) {
+        mNumBytes = numBytes;
+    }
+
+    // Part of the store filled sequentially through its own staging buffer. Different regions
+    // can be written concurrently, each of them from a single thread.
+    class Region {
+        private final ByteBuffer mWriteBuffer;  // staging buffer for the appended data.
+        private long mPosition;  // offset in the store of the first byte of mWriteBuffer.
+
+        private Region(long offset) {
+            mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            mWriteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mPosition = offset;
+        }
+
+        // Offset in the store of the end of the region.
+        long getEnd() {
+            return mPosition + mWriteBuffer.position();
+        }
+
+        void append(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!mWriteBuffer.hasRemaining()) {
+                    flush();
+                }
+                int size = Math.min(length, mWriteBuffer.remaining());
+                mWriteBuffer.put(data, offset, size);
+                offset += size;
+                length -= size;
+            }
+        }
+
+        void append(short[] samples, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mWriteBuffer.remaining() < 2) {
+                    flush();
+                }
+                int size = Math.min(length, mWriteBuffer.remaining() / 2);
+                mWriteBuffer.asShortBuffer().put(samples, offset, size);
+                mWriteBuffer.position(mWriteBuffer.position() + 2 * size);
+                offset += size;
+                length -= size;
+            }
+        }
+
+        // Write the staged data to the file.
+        void flush() throws IOException {
+            mWriteBuffer.flip();
+            while (mWriteBuffer.hasRemaining()) {
+                // Positional writes don't depend on (nor update) the position of the channel.
+                mPosition += mChannel.write(mWriteBuffer, mOffset + mPosition);
+            }
+            mWriteBuffer.clear();
+        }
+    }
+
+    // Write the data appended so far to the file.
+    void flush() throws IOException {
+        if (mAppendRegion != null) {
+            mAppendRegion.flush();
+        }
+    }
+
+    // Flush the pending data and map everything appended so far in memory. More data can still be
+    // appended afterward, but it won't be visible in the returned buffer.
+    PcmBuffer mapPrefix() throws IOException {
+        mAppendRegion.flush();
+        return map(mNumBytes);
+    }
+
+    // Map the first numBytes bytes in memory, e.g. the part of a region starting at 0 which has
+    // been flushed already.
+    PcmBuffer mapPrefix(long numBytes) throws IOException {
+        return map(numBytes);
+    }
+
+    // Flush the pending data and map the whole store in memory. No data can be appended
+    // afterward.
+    PcmBuffer finish() throws IOException {
+        if (mSamples == null) {
+            if (mAppendRegion != null) {
+                mAppendRegion.flush();
+            }
+            mSamples = map(mNumBytes);
+            mAppendRegion = null;
+            mPages = null;
+            // The mappings stay valid after the channel is closed.
+            mChannel.close();
+            mRandomAccessFile.close();
+        }
+        return mSamples;
+    }
+
+    // Move the backing file to dest, which then becomes owned by the caller: it will not be
+    // deleted when the store is released. Returns false if the file could not be moved.
+    boolean moveTo(File dest) {
+        if (mFile == null || mKeepFile || !mFile.renameTo(dest)) {
+            return false;
+        }
+        mFile = dest;
+        mKeepFile = true;
+        return true;
+    }
+
+    // Close the store and delete its backing file (unless it is owned by someone else).
+    void release() {
+        try {
+            mChannel.close();
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            // nothing to do here.
+        }
+        mAppendRegion = null;
+        mPages = null;
+        mSamples = null;
+        if (mFile != null) {
+            if (!mKeepFile) {
+                mFile.delete();
+            }
+            mFile = null;
+        }
+    }
+
+    // Map the first numBytes bytes, one page at a time. Full pages are only mapped once.
+    private synchronized PcmBuffer map(long numBytes) throws IOException {
+        int numFullPages = (int)(numBytes / mBytesPerPage);
+        while (mPages.size() < numFullPages) {
+            mPages.add(mapPage(mPages.size(), mBytesPerPage));
+        }
+        int lastPageSize = (int)(numBytes % mBytesPerPage);
+        ByteBuffer[] pages = new ByteBuffer[numFullPages + (lastPageSize > 0 ? 1 : 0)];
+        for (int i=0; i<numFullPages; i++) {
+            pages[i] = mPages.get(i).duplicate();
+        }
+        if (lastPageSize > 0) {
+            pages[numFullPages] = mapPage(numFullPages, lastPageSize);
+        }
+        int bytesPerSample = 2 * mChannels;
+        return new PcmBuffer(pages, mChannels, mBytesPerPage / bytesPerSample,
+                numBytes / bytesPerSample);
+    }
+
+    private ByteBuffer mapPage(int index, int size) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY,
+                mOffset + (long)index * mBytesPerPage, size);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package buffmail.shadowchatter.soundfile;
+
+/**
+ * Streaming polyphase resampler for mono signals.
+ *
+ * The input is conceptually upsampled by L (zero stuffing), low-pass filtered and then
+ * decimated by M, where L / M = outputRate / inputRate. Only the filter phases actually needed
+ * are evaluated, so each output sample costs TAPS_PER_PHASE multiply-adds.
+ * The low-pass filter is a Blackman windowed sinc, cutting below the lower of the two Nyquist
+ * frequencies.
+ */
+class Resampler {
+    private static final int TAPS_PER_PHASE = 32;
+    private static final double CUTOFF_RATIO = 0.9;  // leave 10% for the transition band.
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mUp;    // L
+    private final int mDown;  // M
+    private final float[] mFilter;  // mUp * TAPS_PER_PHASE coefficients.
+    private float[] mHistory;  // previous input samples, followed by the current ones.
+    private int mHistoryLength;
+    private long mPosition;  // position of the next output sample, in upsampled samples.
+
+    Resampler(int inputRate, int outputRate) {
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        mFilter = designFilter(mUp, mDown);
+        // Start with TAPS_PER_PHASE - 1 samples of silence, and compensate the delay of the
+        // filter so that the first output sample lines up with the first input sample.
+        mHistory = new float[4096];
+        mHistoryLength = TAPS_PER_PHASE - 1;
+        mPosition = (long)(TAPS_PER_PHASE - 1) * mUp + mFilter.length / 2;
+    }
+
+    int getInputRate() {
+        return mInputRate;
+    }
+
+    int getOutputRate() {
+        return mOutputRate;
+    }
+
+    // Maximum number of output samples produced by process() for inputLength input samples.
+    int getMaxOutputLength(int inputLength) {
+        return (int)(((long)inputLength * mUp) / mDown) + 2;
+    }
+
+    // Resample length samples of input, and write the result to output, which must be able to
+    // hold getMaxOutputLength(length) samples. Return the number of samples written to output.
+    int process(float[] input, int length, short[] output) {
+        if (mHistoryLength + length > mHistory.length) {
+            float[] history = new float[Math.max(mHistory.length * 2, mHistoryLength + length)];
+            System.arraycopy(mHistory, 0, history, 0, mHistoryLength);
+            mHistory = history;
+        }
+        System.arraycopy(input, 0, mHistory, mHistoryLength, length);
+        mHistoryLength += length;
+
+        final float[] filter = mFilter;
+        final float[] history = mHistory;
+        final int up = mUp;
+        int numOutput = 0;
+        while (true) {
+            // Newest input sample contributing to this output sample, and filter phase to use.
+            int index = (int)(mPosition / up);
+            int phase = (int)(mPosition - (long)index * up);
+            if (index >= mHistoryLength) {
+                break;
+            }
+            float sum = 0;
+            for (int k = 0, h = phase; k < TAPS_PER_PHASE; k++, h += up) {
+                sum += filter[h] * history[index - k];
+            }
+            int value = Math.round(sum);
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            output[numOutput++] = (short)value;
+            mPosition += mDown;
+        }
+
+        // Only keep the samples needed for the next output samples.
+        int firstNeeded = (int)(mPosition / up) - (TAPS_PER_PHASE - 1);
+        if (firstNeeded > 0) {
+            firstNeeded = Math.min(firstNeeded, mHistoryLength);
+            System.arraycopy(history, firstNeeded, history, 0, mHistoryLength - firstNeeded);
+            mHistoryLength -= firstNeeded;
+            mPosition -= (long)firstNeeded * up;
+        }
+        return numOutput;
+    }
+
+    // Coefficients of the low-pass prototype filter, at the upsampled rate. Coefficient
+    // phase + k * up applies to the k-th most recent input sample for the given phase.
+    private static float[] designFilter(int up, int down) {
+        int length = up * TAPS_PER_PHASE;
+        float[] filter = new float[length];
+        // Cutoff in cycles per upsampled sample.
+        double cutoff = CUTOFF_RATIO * 0.5 / Math.max(up, down);
+        double center = (length - 1) / 2.0;
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = (x == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1)) +
+                    0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            // Multiply by up to compensate for the energy lost by the zero stuffing.
+            filter[n] = (float)(sinc * window * up);
+        }
+        return filter;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
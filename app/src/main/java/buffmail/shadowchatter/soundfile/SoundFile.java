@@ -17,40 +17,43 @@
 package buffmail.shadowchatter.soundfile;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
-import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
 public class SoundFile {
     private ProgressListener mProgressListener = null;
+    private DecodeListener mDecodeListener = null;
     private File mInputFile = null;
 
     // Member variables representing frame data
     private String mFileType;
-    private int mFileSize;
+    private long mFileSize;
     private int mAvgBitRate;  // Average bit rate in kbps.
     private int mSampleRate;
     private int mChannels;
-    private int mNumSamples;  // total number of samples per channel in audio file
-    private ByteBuffer mDecodedBytes;  // Raw audio data
-    private ShortBuffer mDecodedSamples;  // shared buffer with mDecodedBytes.
+    private long mNumSamples;  // total number of samples per channel in audio file
+    private PcmStore mPcmStore;  // Disk-backed storage for the raw audio data.
+    private PcmBuffer mDecodedSamples;  // Raw audio data, memory-mapped from mPcmStore.
     // mDecodedSamples has the following format:
     // {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
     // where sicj is the ith sample of the jth channel (a sample is a signed short)
@@ -59,9 +62,39 @@ public class SoundFile {
     // Member variables for hack (making it work with old version, until app just uses the samples).
     private int mNumFrames;
     private int[] mFrameGains;
+    private byte[] mNormalizedHeights;  // Computed from mFrameGains when first needed.
+    private FrameFeatures mFrameFeatures;
     private int[] mFrameLens;
     private int[] mFrameOffsets;
 
+    // Windowed files only (Cf. createWindowed()): the decoded parts of the file, most recently
+    // used first.
+    private boolean mIsWindowed = false;
+    private int mSpeechSampleRate;  // value of sSpeechSampleRate when the file was scanned.
+    // Where a canceled decoding is saved, and resumed from (Cf. SoundFileCache). May be null.
+    private DecodeCheckpoint mCheckpoint = null;
+    private final List<SampleWindow> mWindows = new ArrayList<SampleWindow>();
+
+    // Number of frames decoded between two calls to the DecodeListener (~6sec at 44.1kHz).
+    private static final int FRAMES_PER_DECODE_BATCH = 256;
+
+    // Big compressed files are split in up to MAX_DECODE_THREADS ranges decoded concurrently,
+    // each of them at least PARALLEL_DECODE_MIN_RANGE_SIZE bytes long (~4min of 128kbps MP3).
+    private static final int MAX_DECODE_THREADS = 8;
+    private static final long PARALLEL_DECODE_MIN_RANGE_SIZE = 4 << 20;
+    // The ranges start on multiples of 20ms, which is a whole number of periods of the resampler
+    // for all the sample rates multiple of 50Hz. Each range is decoded with 20ms more on both
+    // sides, so that the resampler is primed and flushed across the seams.
+    private static final long RANGE_ALIGNMENT_US = 20000;
+    private static final long RANGE_OVERLAP_US = 20000;
+
+    // Decoders tried in order by create(). Uncompressed WAV files don't need a codec round trip.
+    private static final List<AudioDecoder> sDecoders = new ArrayList<AudioDecoder>(
+            Arrays.asList(new AudioDecoder[] {new WavDecoder(), new MediaCodecDecoder()}));
+
+    // Directory where the decoded samples are stored. Defaults to java.io.tmpdir.
+    private static File sTempDirectory = null;
+
     // Progress listener interface.
     public interface ProgressListener {
         /**
@@ -72,8 +105,68 @@ public class SoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    // Listener notified while a file is being decoded, so that the beginning of the file can be
+    // displayed and played before the whole file is decoded.
+    public interface DecodeListener {
+        /**
+         * Will be called by the SoundFile class from the decoding thread, every time a new batch
+         * of frames has been decoded. Only the first numFrames values of frameGains are valid,
+         * and samples contains the samples decoded so far. Both stay valid after this call
+         * returns. The sample rate, number of channels and samples per frame of
+         * soundFile can be used, but the rest of the object is not ready yet.
+         */
+        void onFramesDecoded(SoundFile soundFile, int[] frameGains, int numFrames,
+                             PcmBuffer samples);
+    }
+
+    // Decoded samples of a part of a SoundFile, Cf. getWindow().
+    public static class SampleWindow {
+        private final long mStartSample;
+        private final PcmBuffer mSamples;
+        private PcmStore mPcmStore;  // null if the samples belong to the SoundFile itself.
+
+        private SampleWindow(long startSample, PcmBuffer samples, PcmStore pcmStore) {
+            mStartSample = startSample;
+            mSamples = samples;
+            mPcmStore = pcmStore;
+        }
+
+        // Index (per channel) of the first sample of the window in the file.
+        public long getStartSample() {
+            return mStartSample;
+        }
+
+        public long getNumSamples() {
+            return mSamples.getNumSamples();  // Number of samples per channel.
+        }
+
+        public long getEndSample() {
+            return mStartSample + getNumSamples();
+        }
+
+        public boolean contains(long startSample, long endSample) {
+            return startSample >= mStartSample && endSample <= getEndSample();
+        }
+
+        public PcmBuffer getSamples() {
+            return mSamples;
+        }
+
+        private boolean overlaps(SampleWindow other) {
+            return mStartSample < other.getEndSample() && other.mStartSample < getEndSample();
+        }
+
+        // The buffers returned by getSamples() stay readable, as the mapping outlives the file.
+        private void release() {
+            if (mPcmStore != null) {
+                mPcmStore.release();
+                mPcmStore = null;
+            }
+        }
+    }
+
     // Custom exception for invalid inputs.
-    public class InvalidInputException extends Exception {
+    public static class InvalidInputException extends Exception {
         // Serial version ID generated by Eclipse.
         private static final long serialVersionUID = -2505698991597837165L;
         public InvalidInputException(String message) {
@@ -96,11 +189,97 @@ public class SoundFile {
         return false;
     }
 
+    // Sample rate of the speech mode (0 when disabled), Cf. setSpeechSampleRate().
+    private static int sSpeechSampleRate = 0;
+
+    // Register a decoder, which will be tried before the ones already registered.
+    public static void registerDecoder(AudioDecoder decoder) {
+        synchronized (sDecoders) {
+            sDecoders.add(0, decoder);
+        }
+    }
+
+    // Enable the speech mode: decoded files are stored as mono samples, resampled to sampleRate
+    // if their original sample rate is higher. This reduces the memory used by the samples and the
+    // cost of every scan over them, at the expense of the audio quality.
+    // 0 disables the speech mode, and keeps the original format (the default).
+    public static void setSpeechSampleRate(int sampleRate) {
+        sSpeechSampleRate = sampleRate;
+    }
+
+    public static int getSpeechSampleRate() {
+        return sSpeechSampleRate;
+    }
+
+    // Set the directory used to store the decoded samples (e.g. Context.getCacheDir()).
+    public static void setTempDirectory(File directory) {
+        sTempDirectory = directory;
+    }
+
+    private static File getTempDirectory() {
+        if (sTempDirectory != null) {
+            return sTempDirectory;
+        }
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
     // Create and return a SoundFile object using the file fileName.
     public static SoundFile create(String fileName,
                                    ProgressListener progressListener)
             throws java.io.FileNotFoundException,
             java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, null);
+    }
+
+    // Same as above, and report the decoded frames to decodeListener as they become available.
+    public static SoundFile create(String fileName,
+                                   ProgressListener progressListener,
+                                   DecodeListener decodeListener)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, decodeListener, false, null);
+    }
+
+    // Same as above, resuming the decoding saved in checkpoint if any. If the decoding is
+    // canceled by progressListener, the samples decoded so far are saved in checkpoint.
+    // Used by SoundFileCache.
+    static SoundFile create(String fileName,
+                            ProgressListener progressListener,
+                            DecodeListener decodeListener,
+                            DecodeCheckpoint checkpoint)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, decodeListener, false, checkpoint);
+    }
+
+    // Create a SoundFile object for long files, which are never decoded as a whole: the file is
+    // only scanned to compute the frame gains, and the samples are then decoded on demand, one
+    // window at a time, with getWindow(). getSamples() returns null for such objects.
+    public static SoundFile createWindowed(String fileName,
+                                           ProgressListener progressListener)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, null, true, null);
+    }
+
+    // Same as above, resuming the scan saved in checkpoint if any. If the scan is canceled by
+    // progressListener, the frame gains computed so far are saved in checkpoint.
+    // Used by SoundFileCache.
+    static SoundFile createWindowed(String fileName,
+                                    ProgressListener progressListener,
+                                    DecodeCheckpoint checkpoint)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, null, true, checkpoint);
+    }
+
+    private static SoundFile create(String fileName,
+                                    ProgressListener progressListener,
+                                    DecodeListener decodeListener,
+                                    boolean isWindowed,
+                                    DecodeCheckpoint checkpoint)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, InvalidInputException {
         // First check that the file exists and that its extension is supported.
         File f = new File(fileName);
         if (!f.exists()) {
@@ -116,12 +295,18 @@ public class SoundFile {
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
+        soundFile.mDecodeListener = decodeListener;
+        soundFile.mIsWindowed = isWindowed;
+        soundFile.mCheckpoint = checkpoint;
+        if (!soundFile.ReadFile(f)) {
+            return null;
+        }
         return soundFile;
     }
 
     // Create and return a SoundFile object by recording a mono audio stream.
-    public static SoundFile record(ProgressListener progressListener) {
+    public static SoundFile record(ProgressListener progressListener)
+            throws java.io.IOException {
         if (progressListener ==  null) {
             // must have a progessListener to stop the recording.
             return null;
@@ -136,7 +321,7 @@ public class SoundFile {
         return mFileType;
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;
     }
 
@@ -152,7 +337,7 @@ public class SoundFile {
         return mChannels;
     }
 
-    public int getNumSamples() {
+    public long getNumSamples() {
         return mNumSamples;  // Number of samples per channel.
     }
 
@@ -171,19 +356,78 @@ public class SoundFile {
         return mFrameGains;
     }
 
-    public ShortBuffer getSamples() {
-        if (mDecodedSamples != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
-                    Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1) {
-                // Hack for Nougat where asReadOnlyBuffer fails to respect byte ordering.
-                // See https://code.google.com/p/android/issues/detail?id=223824
-                return mDecodedSamples;
-            } else {
-                return mDecodedSamples.asReadOnlyBuffer();
+    // Display height of each frame, Cf. GainNormalizer. Computed once, and shared by all the
+    // views of the file.
+    public synchronized byte[] getNormalizedHeights() {
+        if (mNormalizedHeights == null && mFrameGains != null) {
+            mNormalizedHeights = GainNormalizer.normalize(mFrameGains, mNumFrames);
+        }
+        return mNormalizedHeights;
+    }
+
+    // RMS, peak and zero crossing rate of each frame, Cf. FrameFeatures.
+    public FrameFeatures getFrameFeatures() {
+        return mFrameFeatures;
+    }
+
+    public PcmBuffer getSamples() {
+        return mDecodedSamples;
+    }
+
+    public boolean isWindowed() {
+        return mIsWindowed;
+    }
+
+    // Return a window containing the samples between startSample (included) and endSample
+    // (excluded), clamped to the file. For windowed files, the window is decoded if it is not
+    // available yet, and the windows which do not overlap it are evicted. This may take a while,
+    // and should not be called from the UI thread. Other files return a window over all their
+    // samples.
+    public synchronized SampleWindow getWindow(long startSample, long endSample)
+            throws java.io.IOException, InvalidInputException {
+        if (!mIsWindowed) {
+            return new SampleWindow(0, mDecodedSamples, null);
+        }
+        startSample = Math.max(0, Math.min(startSample, mNumSamples));
+        endSample = Math.max(startSample, Math.min(endSample, mNumSamples));
+        for (int i=0; i<mWindows.size(); i++) {
+            SampleWindow window = mWindows.get(i);
+            if (window.contains(startSample, endSample)) {
+                mWindows.remove(i);
+                mWindows.add(0, window);
+                return window;
             }
-        } else {
-            return null;
         }
+        DecoderOutput output = new DecoderOutput(null, true, false);
+        getDecoder(mInputFile).decodeRange(mInputFile, output,
+                (long)(startSample * 1000000.0 / mSampleRate),
+                (long)(endSample * 1000000.0 / mSampleRate));
+        if (output.mPcmStore == null) {
+            throw new java.io.IOException("Failed to decode " + mInputFile);
+        }
+        SampleWindow window =
+                new SampleWindow(startSample, output.mPcmStore.finish(), output.mPcmStore);
+        for (int i=mWindows.size() - 1; i>=0; i--) {
+            if (!mWindows.get(i).overlaps(window)) {
+                mWindows.remove(i).release();
+            }
+        }
+        mWindows.add(0, window);
+        return window;
+    }
+
+    // Release the decoded samples and delete their backing file. The SoundFile object and the
+    // buffers returned by getSamples() should NOT be used afterward.
+    public synchronized void release() {
+        if (mPcmStore != null) {
+            mPcmStore.release();
+            mPcmStore = null;
+        }
+        mDecodedSamples = null;
+        for (SampleWindow window : mWindows) {
+            window.release();
+        }
+        mWindows.clear();
     }
 
     // A SoundFile object should only be created using the static methods create() and record().
@@ -194,214 +438,767 @@ public class SoundFile {
         mProgressListener = progressListener;
     }
 
-    private void ReadFile(File inputFile)
+    // Return false if reading the file was canceled by the progress listener.
+    private boolean ReadFile(File inputFile)
             throws java.io.FileNotFoundException,
             java.io.IOException, InvalidInputException {
-        MediaExtractor extractor = new MediaExtractor();
-        MediaFormat format = null;
-        int i;
-
         mInputFile = inputFile;
         String[] components = mInputFile.getPath().split("\\.");
         mFileType = components[components.length - 1];
-        mFileSize = (int)mInputFile.length();
-        extractor.setDataSource(mInputFile.getPath());
-        int numTracks = extractor.getTrackCount();
-        // find and select the first audio track present in the file.
-        for (i=0; i<numTracks; i++) {
-            format = extractor.getTrackFormat(i);
-            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
-                extractor.selectTrack(i);
-                break;
+        mFileSize = mInputFile.length();
+
+        mSpeechSampleRate = sSpeechSampleRate;
+
+        AudioDecoder decoder = getDecoder(mInputFile);
+        // A checkpoint of a windowed scan has no samples, and one of a decoding can't be used
+        // without them.
+        boolean resume = mCheckpoint != null && mCheckpoint.load() &&
+                mCheckpoint.mHasSamples == !mIsWindowed;
+        ParallelDecode parallelDecode = new ParallelDecode(decoder, resume);
+        if (parallelDecode.run()) {
+            if (parallelDecode.mCancelled) {
+                release();
+                return false;
             }
+            mNumSamples = parallelDecode.mNumSamples;
+            mPcmStore = parallelDecode.mPcmStore;
+            mFrameGains = parallelDecode.mGains.finish();
+            mFrameFeatures = parallelDecode.mGains.getFeatures();
+        } else {
+            // Windowed files are only scanned for their frame gains, their samples are not stored.
+            DecoderOutput output = new DecoderOutput(mProgressListener, !mIsWindowed, true);
+            decoder.decode(mInputFile, output);
+            if (output.mCancelled || output.mGains == null) {
+                // We were asked to stop reading the file. The SoundFile object is invalid.
+                if (output.mPcmStore != null) {
+                    output.mPcmStore.flush();
+                    saveCheckpoint(output, output.mPcmStore);
+                } else if (mIsWindowed) {
+                    saveCheckpoint(output, null);
+                }
+                release();
+                return false;
+            }
+            mNumSamples = output.mNumSamples;
+            mPcmStore = output.mPcmStore;
+            mFrameGains = output.mGains.finish();
+            mFrameFeatures = output.mGains.getFeatures();
         }
-        if (i == numTracks) {
-            throw new InvalidInputException("No audio track found in " + mInputFile);
+        if (mPcmStore != null) {
+            mDecodedSamples = mPcmStore.finish();
+        }
+        if (mCheckpoint != null) {
+            if (mPcmStore != null && mCheckpoint.getPcmFile().equals(mPcmStore.getFile())) {
+                mCheckpoint.deleteMetadata();  // Its samples now belong to mPcmStore.
+            } else {
+                mCheckpoint.delete();
+            }
+            mCheckpoint = null;
         }
-        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        // Expected total number of samples per channel.
-        int expectedNumSamples =
-                (int)((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f) * mSampleRate + 0.5f);
+        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
 
-        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
-        codec.configure(format, null, null, 0);
-        codec.start();
+        // Temporary hack to make it work with the old version.
+        mNumFrames = mFrameGains.length;
+        computeFrameLensAndOffsets();
+        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
+        return true;
+    }
 
-        int decodedSamplesSize = 0;  // size of the output buffer containing decoded samples.
-        byte[] decodedSamples = null;
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        int sample_size;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        long presentation_time;
-        int tot_size_read = 0;
-        boolean done_reading = false;
+    // Return the first registered decoder accepting inputFile.
+    private static AudioDecoder getDecoder(File inputFile)
+            throws java.io.IOException, InvalidInputException {
+        byte[] header = new byte[12];
+        int headerSize = 0;
+        FileInputStream inputStream = new FileInputStream(inputFile);
+        try {
+            int size;
+            while (headerSize < header.length &&
+                    (size = inputStream.read(header, headerSize, header.length - headerSize)) > 0) {
+                headerSize += size;
+            }
+        } finally {
+            inputStream.close();
+        }
+        header = Arrays.copyOf(header, headerSize);
+        synchronized (sDecoders) {
+            for (AudioDecoder decoder : sDecoders) {
+                if (decoder.canDecode(inputFile, header)) {
+                    return decoder;
+                }
+            }
+        }
+        throw new InvalidInputException("No decoder found for " + inputFile);
+    }
 
-        // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
-        // For longer streams, the buffer size will be increased later on, calculating a rough
-        // estimate of the total size needed to store all the samples in order to resize the buffer
-        // only once.
-        mDecodedBytes = ByteBuffer.allocate(1<<20);
-        Boolean firstSampleData = true;
-        while (true) {
-            // read data from file and feed it to the decoder input buffers.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
-                if (firstSampleData
-                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
-                        && sample_size == 2) {
-                    // For some reasons on some devices (e.g. the Samsung S3) you should not
-                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
-                    // crash. These two bytes do not contain music data but basic info on the
-                    // stream (e.g. channel configuration and sampling frequency), and skipping them
-                    // seems OK with other devices (MediaCodec has already been configured and
-                    // already knows these parameters).
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                } else if (sample_size < 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
+    // Keep the samples decoded by a canceled decoding in mCheckpoint (if any), so that it can be
+    // resumed from there later on. output is the output which decoded the beginning of the file
+    // and store (which must be flushed) holds its samples. The store is released either way.
+    // Windowed files keep no samples (store is null), only the frame gains.
+    private void saveCheckpoint(DecoderOutput output, PcmStore store) {
+        long numSamples = output.mStartSample + output.mNumSamples;
+        if (mCheckpoint == null || output.mGains == null || mSampleRate <= 0) {
+            if (store != null) {
+                store.release();
+            }
+            return;
+        }
+        // Resume on a range boundary (Cf. ParallelDecode), and only keep the samples before it.
+        // Without the samples, the last frame before it couldn't be completed: the boundary must
+        // be a frame boundary as well.
+        long resumeUs = (long)(numSamples * 1000000.0 / mSampleRate) /
+                RANGE_ALIGNMENT_US * RANGE_ALIGNMENT_US;
+        long keptSamples = Math.round(resumeUs * (double)mSampleRate / 1000000);
+        while (resumeUs > 0 && (keptSamples > numSamples ||
+                (store == null && keptSamples % getSamplesPerFrame() != 0))) {
+            resumeUs -= RANGE_ALIGNMENT_US;
+            keptSamples = Math.round(resumeUs * (double)mSampleRate / 1000000);
+        }
+        int numFrames = (int)Math.min(
+                keptSamples / getSamplesPerFrame(), output.mGains.getNumFrames());
+        if (store == null) {
+            if (resumeUs <= 0) {
+                return;
+            }
+            try {
+                mCheckpoint.getPcmFile().delete();
+                mCheckpoint.save(resumeUs, false, mSampleRate, mChannels, keptSamples,
+                        output.mGains, numFrames);
+            } catch (IOException e) {
+                Log.w("Ringdroid", "Failed to save the scan checkpoint: " + e);
+                mCheckpoint.delete();
+            }
+            return;
+        }
+        // The samples of a decoded WAV file may be the input file itself, which can't be moved.
+        if (resumeUs <= 0 || !store.moveTo(mCheckpoint.getPcmFile())) {
+            store.release();
+            return;
+        }
+        store.release();
+        try {
+            RandomAccessFile file = new RandomAccessFile(mCheckpoint.getPcmFile(), "rw");
+            try {
+                file.setLength(keptSamples * 2 * mChannels);
+            } finally {
+                file.close();
+            }
+            mCheckpoint.save(resumeUs, true, mSampleRate, mChannels, keptSamples,
+                    output.mGains, numFrames);
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to save the decoding checkpoint: " + e);
+            mCheckpoint.delete();
+        }
+    }
+
+    // Decodes a big file as several time ranges (split at sync points) on as many threads, each
+    // range with its own codec, into its own region of a shared PcmStore. The frame gains of the
+    // ranges are then stitched together, merging the frames straddling two ranges.
+    // This also resumes the decoding saved in mCheckpoint: the ranges then start at its resume
+    // point, and the shared store is the one holding its samples.
+    private class ParallelDecode {
+        private final AudioDecoder mDecoder;
+        private final DecodeCheckpoint mResumeFrom;  // null when decoding from the start.
+        private long[] mSplitPoints;  // in microseconds, range i is [mSplitPoints[i], [i + 1]).
+        private double[] mProgress;  // of each range.
+        private DecoderOutput[] mOutputs;
+        private Exception mError = null;  // first error thrown by a range.
+        private boolean mStoreCreated = false;
+        // Results.
+        volatile boolean mCancelled = false;
+        PcmStore mPcmStore = null;
+        long mNumSamples = 0;
+        FrameGainAccumulator mGains = null;  // of the whole file.
+
+        ParallelDecode(AudioDecoder decoder, boolean resume) {
+            mDecoder = decoder;
+            mResumeFrom = resume ? mCheckpoint : null;
+        }
+
+        // Decode the file in parallel. Return false if the file was not decoded (too small, or
+        // can't be split, or the decoding failed), in which case it should be decoded serially.
+        // Otherwise the results are set, unless mCancelled is set.
+        boolean run() throws java.io.IOException, InvalidInputException {
+            if (!split()) {
+                return false;
+            }
+            int numRanges = mSplitPoints.length - 1;
+            mProgress = new double[numRanges];
+            mOutputs = new DecoderOutput[numRanges];
+            Thread[] threads = new Thread[numRanges];
+            for (int i=0; i<numRanges; i++) {
+                mOutputs[i] = new DecoderOutput(this, i);
+                final int range = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        decodeRange(range);
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        mCancelled = true;
+                    }
+                }
+            }
+            if (mError != null) {
+                Log.w("Ringdroid", "Parallel decoding failed, decoding serially: " + mError);
+                mCancelled = false;
+                releaseStore();
+                if (mResumeFrom != null) {
+                    mResumeFrom.delete();
+                }
+                return false;
+            }
+            if (mCancelled) {
+                // The first range holds the beginning of the file, which can be kept.
+                DecoderOutput first = mOutputs[0];
+                if (first.mRegion != null) {
+                    first.mRegion.flush();
+                    saveCheckpoint(first, mPcmStore);
+                    mPcmStore = null;
                 } else {
-                    presentation_time = extractor.getSampleTime();
-                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                    if (mProgressListener != null) {
-                        if (!mProgressListener.reportProgress((float)(tot_size_read) / mFileSize)) {
-                            // We are asked to stop reading the file. Returning immediately. The
-                            // SoundFile object is invalid and should NOT be used afterward!
-                            extractor.release();
-                            extractor = null;
-                            codec.stop();
-                            codec.release();
-                            codec = null;
-                            return;
-                        }
+                    releaseStore();
+                    if (mIsWindowed) {
+                        saveCheckpoint(first, null);
                     }
                 }
-                firstSampleData = false;
+                return true;
             }
+            stitch();
+            return true;
+        }
 
-            // Get decoded stream from the decoder output buffers.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size;
-                    decodedSamples = new byte[decodedSamplesSize];
+        // Set mSplitPoints. Return false if the file should not be decoded in parallel.
+        private boolean split() throws java.io.IOException, InvalidInputException {
+            long startUs = (mResumeFrom != null) ? mResumeFrom.mResumeUs : 0;
+            int maxRanges = (int)Math.min(
+                    Math.min(Runtime.getRuntime().availableProcessors(), MAX_DECODE_THREADS),
+                    mFileSize / PARALLEL_DECODE_MIN_RANGE_SIZE);
+            long[] splitPoints = null;
+            if (maxRanges >= 2) {
+                splitPoints = mDecoder.getSplitPoints(mInputFile, maxRanges);
+            }
+            if (splitPoints == null) {
+                if (mResumeFrom == null) {
+                    return false;
                 }
-                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (mDecodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    int position = mDecodedBytes.position();
-                    int newSize = (int)((position * (1.0 * mFileSize / tot_size_read)) * 1.2);
-                    if (newSize - position < info.size + 5 * (1<<20)) {
-                        newSize = position + info.size + 5 * (1<<20);
+                // A single range, up to the end of the file.
+                mSplitPoints = new long[] {startUs, Long.MAX_VALUE};
+                return true;
+            }
+            long[] points = new long[splitPoints.length];
+            points[0] = startUs;
+            int numRanges = 1;
+            for (int i=1; i<splitPoints.length - 1; i++) {
+                long splitPoint = splitPoints[i] / RANGE_ALIGNMENT_US * RANGE_ALIGNMENT_US;
+                if (splitPoint > points[numRanges - 1]) {
+                    points[numRanges++] = splitPoint;
+                }
+            }
+            points[numRanges] = Math.max(splitPoints[splitPoints.length - 1], startUs);
+            if (numRanges < 2 && mResumeFrom == null) {
+                return false;
+            }
+            mSplitPoints = Arrays.copyOf(points, numRanges + 1);
+            return true;
+        }
+
+        private void decodeRange(int range) {
+            DecoderOutput output = mOutputs[range];
+            try {
+                // The last range goes up to the end of the file, whatever its actual duration.
+                long endUs = (range == mOutputs.length - 1) ?
+                        Long.MAX_VALUE : mSplitPoints[range + 1] + RANGE_OVERLAP_US;
+                mDecoder.decodeRange(mInputFile, output,
+                        Math.max(mSplitPoints[range] - RANGE_OVERLAP_US, 0), endUs);
+                if (!mCancelled) {
+                    output.finishRange();
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    if (mError == null) {
+                        mError = e;
                     }
-                    ByteBuffer newDecodedBytes = null;
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    int retry = 10;
-                    while(retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize);
-                            break;
-                        } catch (OutOfMemoryError oome) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--;
+                }
+                mCancelled = true;  // stop the other ranges.
+            }
+        }
+
+        // Return the store shared by all the ranges, creating it on first use.
+        synchronized PcmStore getStore(int sampleRate, int channels) throws java.io.IOException {
+            if (!mStoreCreated) {
+                mStoreCreated = true;
+                if (mResumeFrom == null) {
+                    mPcmStore = PcmStore.create(getTempDirectory(), channels);
+                } else if (sampleRate == mResumeFrom.mSampleRate &&
+                        channels == mResumeFrom.mChannels) {
+                    mPcmStore = PcmStore.reopen(mResumeFrom.getPcmFile(), channels);
+                }
+            }
+            if (mPcmStore == null) {
+                throw new java.io.IOException("Checkpoint format mismatch");
+            }
+            return mPcmStore;
+        }
+
+        synchronized boolean reportProgress(int range, double fractionComplete) {
+            mProgress[range] = fractionComplete;
+            double total = 0;
+            for (double progress : mProgress) {
+                total += progress;
+            }
+            total /= mProgress.length;
+            long endUs = mSplitPoints[mSplitPoints.length - 1];
+            if (endUs != Long.MAX_VALUE && endUs > 0) {
+                // A resumed decoding starts where the previous one stopped.
+                double start = (double)mSplitPoints[0] / endUs;
+                total = start + (1 - start) * total;
+            }
+            if (mProgressListener != null && !mProgressListener.reportProgress(total)) {
+                mCancelled = true;
+            }
+            return !mCancelled;
+        }
+
+        // Put the results of all the ranges together.
+        private void stitch() throws java.io.IOException {
+            DecoderOutput last = mOutputs[mOutputs.length - 1];
+            mNumSamples = last.mStartSample + last.mNumSamples;
+            // The first range starts at the first frame. The first and last frames of a range
+            // may be shared with its neighbors.
+            mGains = mOutputs[0].mGains;
+            mGains.finish();
+            for (int i=1; i<mOutputs.length; i++) {
+                mOutputs[i].mGains.finish();
+                mGains.merge(mOutputs[i].mGains, mOutputs[i].mFirstFrame);
+            }
+            if (mPcmStore != null) {
+                mPcmStore.setNumBytes(mNumSamples * 2 * SoundFile.this.mChannels);
+            }
+        }
+
+        private synchronized void releaseStore() {
+            if (mPcmStore != null) {
+                mPcmStore.release();
+                mPcmStore = null;
+            }
+        }
+    }
+
+    // Receives the samples from the AudioDecoder, stores them in a PcmStore and/or computes the
+    // frame gains on the fly.
+    private class DecoderOutput implements AudioDecoder.Output {
+        private static final int SCAN_BUFFER_SIZE = 1 << 16;
+
+        private final ProgressListener mListener;
+        private final boolean mStoreSamples;
+        private final boolean mComputeGains;
+        // Parallel decoding only: the range of the file written by this output, its first
+        // sample in the whole file, its maximum number of samples, and the number of samples
+        // decoded before its start (overlapping the previous range) still to be dropped.
+        private final ParallelDecode mParallelDecode;
+        private final int mRange;
+        private PcmStore.Region mRegion = null;
+        long mStartSample = 0;
+        private long mMaxNumSamples = Long.MAX_VALUE;
+        private long mNumSamplesToDrop = 0;
+        int mFirstFrame = 0;  // frame of the whole file of the first gain of mGains.
+        // Format of the stored samples, and number of samples (per channel) stored so far.
+        private int mSampleRate;
+        private int mChannels;
+        long mNumSamples = 0;
+        PcmStore mPcmStore = null;
+        FrameGainAccumulator mGains = null;
+        boolean mCancelled = false;
+        private int mNumPublishedFrames = 0;
+        private int mInputChannels;
+        private long mNumInputSamples = 0;
+        // Speech mode only: the decoded samples are downmixed to mono and resampled before being
+        // stored.
+        private boolean mConvert = false;
+        private Resampler mResampler = null;
+        private float[] mMonoSamples = null;
+        private short[] mConvertedSamples = null;
+
+        // The output of the main decoding pass also defines the format of the SoundFile.
+        DecoderOutput(ProgressListener listener, boolean storeSamples, boolean computeGains) {
+            mListener = listener;
+            mStoreSamples = storeSamples;
+            mComputeGains = computeGains;
+            mParallelDecode = null;
+            mRange = 0;
+        }
+
+        // Output of the given range of a parallel decoding of the file.
+        DecoderOutput(ParallelDecode parallelDecode, int range) {
+            mListener = null;
+            mStoreSamples = !mIsWindowed;
+            mComputeGains = true;
+            mParallelDecode = parallelDecode;
+            mRange = range;
+        }
+
+        @Override
+        public void setFormat(int sampleRate, int channels, long expectedNumSamples)
+                throws java.io.IOException {
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mInputChannels = channels;
+            int expectedNumFrames = (int)(expectedNumSamples / getSamplesPerFrame() + 1);
+            if (mSpeechSampleRate > 0) {
+                mConvert = true;
+                mChannels = 1;
+                if (sampleRate > mSpeechSampleRate) {
+                    mResampler = new Resampler(sampleRate, mSpeechSampleRate);
+                    mSampleRate = mSpeechSampleRate;
+                    expectedNumFrames = (int)((long)expectedNumFrames * mSampleRate / sampleRate) + 1;
+                }
+            }
+            int skippedSamples = 0;
+            if (mParallelDecode != null) {
+                // The range starts at mStartSample in the whole file, and stops where the next
+                // one starts.
+                long[] splitPoints = mParallelDecode.mSplitPoints;
+                mStartSample = Math.round(splitPoints[mRange] * (double)mSampleRate / 1000000);
+                mNumSamplesToDrop = mStartSample - Math.round(
+                        Math.max(splitPoints[mRange] - RANGE_OVERLAP_US, 0) *
+                        (double)mSampleRate / 1000000);
+                if (mRange < splitPoints.length - 2) {
+                    mMaxNumSamples = Math.round(
+                            splitPoints[mRange + 1] * (double)mSampleRate / 1000000) - mStartSample;
+                }
+                skippedSamples = (int)(mStartSample % getSamplesPerFrame());
+                mFirstFrame = (int)(mStartSample / getSamplesPerFrame());
+                if (mStoreSamples) {
+                    mRegion = mParallelDecode.getStore(mSampleRate, mChannels).createRegion(
+                            mStartSample * 2 * mChannels);
+                }
+            } else if (mStoreSamples) {
+                // The decoded samples are appended to a file, and mapped in memory once decoding
+                // is done.
+                mPcmStore = PcmStore.create(getTempDirectory(), mChannels);
+            }
+            if (mComputeGains) {
+                SoundFile.this.mSampleRate = mSampleRate;
+                SoundFile.this.mChannels = mChannels;
+                // The frame gains are computed on each decoded buffer, while it is still hot in
+                // cache.
+                mGains = new FrameGainAccumulator(mChannels, getSamplesPerFrame(), expectedNumFrames,
+                        skippedSamples);
+            }
+            if (mParallelDecode != null && mRange == 0 && mParallelDecode.mResumeFrom != null) {
+                resumeGains(mParallelDecode.mResumeFrom);
+            }
+        }
+
+        // Continue the frame gains of the checkpoint, so that the gains of the first range are
+        // those of the whole beginning of the file.
+        private void resumeGains(DecodeCheckpoint checkpoint) throws java.io.IOException {
+            if (mStartSample != checkpoint.mNumSamples) {
+                throw new java.io.IOException("Checkpoint format mismatch");
+            }
+            int samplesPerFrame = getSamplesPerFrame();
+            int numFrames = checkpoint.mFrameGains.length;
+            mGains = new FrameGainAccumulator(mChannels, samplesPerFrame,
+                    mGains.getFrameGains().length + numFrames, checkpoint.mFrameGains,
+                    checkpoint.mSumSquares, checkpoint.mPeaks, checkpoint.mZeroCrossings, numFrames);
+            mFirstFrame = 0;
+            if (!checkpoint.mHasSamples) {
+                // A windowed scan resumes right after its last frame. The samples decoded
+                // before the range (and dropped) give the sign of the last sample.
+                if (mSampleRate != checkpoint.mSampleRate || mChannels != checkpoint.mChannels ||
+                        (long)numFrames * samplesPerFrame != mStartSample) {
+                    throw new java.io.IOException("Checkpoint format mismatch");
+                }
+                return;
+            }
+            // The samples of the last frame of the checkpoint are in the store, but not its gain.
+            long frameStart = (long)numFrames * samplesPerFrame;
+            PcmBuffer samples = mParallelDecode.getStore(mSampleRate, mChannels).mapPrefix(
+                    mStartSample * 2 * mChannels);
+            int bytesPerSample = 2 * mChannels;
+            byte[] buffer = new byte[(int)(mStartSample - frameStart + 1) * bytesPerSample];
+            if (frameStart > 0) {
+                samples.get(frameStart - 1, buffer, 0, 1);
+                mGains.setPrecedingSamples(buffer, 0, bytesPerSample);
+            }
+            int size = samples.get(frameStart, buffer, 0, (int)(mStartSample - frameStart));
+            mGains.add(buffer, 0, size * bytesPerSample);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws java.io.IOException {
+            mNumInputSamples += length / (2 * mInputChannels);
+            if (mConvert) {
+                convert(data, offset, length);
+            } else {
+                append(data, offset, length / (2 * mChannels));
+            }
+            if (mDecodeListener != null && mGains != null &&
+                    mGains.getNumFrames() - mNumPublishedFrames >= FRAMES_PER_DECODE_BATCH) {
+                if (mPcmStore != null) {
+                    publishDecodedFrames(mPcmStore.mapPrefix());
+                } else if (mRegion != null && mRange == 0) {
+                    // The first range of a parallel decoding is the beginning of the file.
+                    mRegion.flush();
+                    publishDecodedFrames(mParallelDecode.getStore(mSampleRate, mChannels)
+                            .mapPrefix(mRegion.getEnd()));
+                }
+            }
+        }
+
+        // Store and/or measure numSamples samples (per channel), and count them. When decoding in
+        // parallel, the samples outside of the range are dropped.
+        private void append(byte[] data, int offset, int numSamples) throws java.io.IOException {
+            int numDropped = (int)Math.min(numSamples, mNumSamplesToDrop);
+            mNumSamplesToDrop -= numDropped;
+            if (numDropped > 0 && mGains != null) {
+                mGains.setPrecedingSamples(data, offset, numDropped * 2 * mChannels);
+            }
+            offset += numDropped * 2 * mChannels;
+            numSamples = (int)Math.min(numSamples - numDropped, mMaxNumSamples - mNumSamples);
+            if (numSamples <= 0) {
+                return;
+            }
+            mNumSamples += numSamples;
+            int length = numSamples * 2 * mChannels;
+            if (mPcmStore != null) {
+                mPcmStore.append(data, offset, length);
+            } else if (mRegion != null) {
+                mRegion.append(data, offset, length);
+            }
+            if (mGains != null) {
+                mGains.add(data, offset, length);
+            }
+        }
+
+        private void append(short[] samples, int offset, int numSamples)
+                throws java.io.IOException {
+            int numDropped = (int)Math.min(numSamples, mNumSamplesToDrop);
+            mNumSamplesToDrop -= numDropped;
+            if (numDropped > 0 && mGains != null) {
+                mGains.setPrecedingSamples(samples, offset, numDropped * mChannels);
+            }
+            offset += numDropped * mChannels;
+            numSamples = (int)Math.min(numSamples - numDropped, mMaxNumSamples - mNumSamples);
+            if (numSamples <= 0) {
+                return;
+            }
+            mNumSamples += numSamples;
+            int length = numSamples * mChannels;
+            if (mPcmStore != null) {
+                mPcmStore.append(samples, offset, length);
+            } else if (mRegion != null) {
+                mRegion.append(samples, offset, length);
+            }
+            if (mGains != null) {
+                mGains.add(samples, offset, length);
+            }
+        }
+
+        // Parallel decoding only: pad the range with silence up to the start of the next one
+        // if the decoder returned fewer samples than expected, and flush the stored samples.
+        void finishRange() throws java.io.IOException {
+            if (mMaxNumSamples != Long.MAX_VALUE && mNumSamples < mMaxNumSamples) {
+                byte[] silence = new byte[SCAN_BUFFER_SIZE / (2 * mChannels) * (2 * mChannels)];
+                while (mNumSamples < mMaxNumSamples) {
+                    append(silence, 0, silence.length / (2 * mChannels));
+                }
+            }
+            if (mRegion != null) {
+                mRegion.flush();
+            }
+        }
+
+        // Downmix the samples to mono, resample them if needed, and store the result.
+        private void convert(byte[] data, int offset, int length) throws java.io.IOException {
+            int numSamples = length / (2 * mInputChannels);
+            if (mMonoSamples == null || mMonoSamples.length < numSamples) {
+                mMonoSamples = new float[numSamples];
+                int maxOutputLength = (mResampler != null) ?
+                        mResampler.getMaxOutputLength(numSamples) : numSamples;
+                mConvertedSamples = new short[maxOutputLength];
+            }
+            final float scale = 1.0f / mInputChannels;
+            for (int i = 0, j = offset; i < numSamples; i++) {
+                int sum = 0;
+                for (int k = 0; k < mInputChannels; k++, j += 2) {
+                    sum += (short)((data[j] & 0xFF) | (data[j + 1] << 8));
+                }
+                mMonoSamples[i] = sum * scale;
+            }
+            int numConverted;
+            if (mResampler != null) {
+                numConverted = mResampler.process(mMonoSamples, numSamples, mConvertedSamples);
+            } else {
+                for (int i = 0; i < numSamples; i++) {
+                    mConvertedSamples[i] = (short)Math.round(mMonoSamples[i]);
+                }
+                numConverted = numSamples;
+            }
+            append(mConvertedSamples, 0, numConverted);
+        }
+
+        @Override
+        public void setSamples(File file, long offset, long length) throws java.io.IOException {
+            if (mConvert) {
+                // The samples can't be used as is, convert them like decoded ones.
+                PcmStore input = PcmStore.open(file, offset, length, mInputChannels);
+                try {
+                    PcmBuffer samples = input.finish();
+                    int bufferSamples = SCAN_BUFFER_SIZE / (2 * mInputChannels);
+                    byte[] buffer = new byte[bufferSamples * 2 * mInputChannels];
+                    long position = 0;
+                    int size;
+                    while ((size = samples.get(position, buffer, 0, bufferSamples)) > 0) {
+                        write(buffer, 0, size * 2 * mInputChannels);
+                        position += size;
+                        if (!reportProgress((double)position / samples.getNumSamples())) {
+                            return;
                         }
                     }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
-                        break;
-                    }
-                    //ByteBuffer newDecodedBytes = ByteBuffer.allocate(newSize);
-                    mDecodedBytes.rewind();
-                    newDecodedBytes.put(mDecodedBytes);
-                    mDecodedBytes = newDecodedBytes;
-                    mDecodedBytes.position(position);
+                } finally {
+                    input.release();
                 }
-                mDecodedBytes.put(decodedSamples, 0, info.size);
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
+                return;
             }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (mDecodedBytes.position() / (2 * mChannels)) >= expectedNumSamples) {
-                // We got all the decoded data from the decoder. Stop here.
-                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
-                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
-                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
-                // calls to dequeueOutputBuffer may result in the application crashing, without
-                // even an exception being thrown... Hence the second check.
-                // (for mono AAC files, the S3 will actually double each sample, as if the stream
-                // was stereo. The resulting stream is half what it's supposed to be and with a much
-                // lower pitch.)
-                break;
+            PcmStore input = PcmStore.open(file, offset, length, mChannels);
+            mNumSamples = input.getNumBytes() / (2 * mChannels);
+            mNumInputSamples = mNumSamples;
+            if (mStoreSamples) {
+                mPcmStore.release();
+                mPcmStore = input;
+            }
+            if (mGains == null) {
+                return;
+            }
+            try {
+                // The samples are already there. Only the frame gains need to be computed.
+                PcmBuffer samples = input.finish();
+                int bufferSamples = SCAN_BUFFER_SIZE / (2 * mChannels);
+                byte[] buffer = new byte[bufferSamples * 2 * mChannels];
+                long position = 0;
+                int size;
+                while ((size = samples.get(position, buffer, 0, bufferSamples)) > 0) {
+                    mGains.add(buffer, 0, size * 2 * mChannels);
+                    position += size;
+                    if (!reportProgress((double)position / mNumSamples)) {
+                        return;
+                    }
+                    if (mDecodeListener != null && mStoreSamples &&
+                            mGains.getNumFrames() - mNumPublishedFrames >= FRAMES_PER_DECODE_BATCH) {
+                        publishDecodedFrames(samples.prefix(position));
+                    }
+                }
+            } finally {
+                if (!mStoreSamples) {
+                    input.release();
+                }
             }
         }
-        mNumSamples = mDecodedBytes.position() / (mChannels * 2);  // One sample = 2 bytes.
-        mDecodedBytes.rewind();
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
-        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
 
-        extractor.release();
-        extractor = null;
-        codec.stop();
-        codec.release();
-        codec = null;
+        @Override
+        public long getNumSamples() {
+            return mNumInputSamples;
+        }
 
-        // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
+        @Override
+        public boolean reportProgress(double fractionComplete) {
+            if (mParallelDecode != null) {
+                return mParallelDecode.reportProgress(mRange, fractionComplete);
+            }
+            if (mListener != null && !mListener.reportProgress(fractionComplete)) {
+                mCancelled = true;
+            }
+            return !mCancelled;
+        }
+
+        // Notify mDecodeListener of the frames and samples decoded so far.
+        private void publishDecodedFrames(PcmBuffer samples) {
+            mDecodeListener.onFramesDecoded(SoundFile.this, mGains.getFrameGains(),
+                    mGains.getNumFrames(), samples);
+            mNumPublishedFrames = mGains.getNumFrames();
         }
-        mFrameGains = new int[mNumFrames];
+    }
+
+    // Fill mFrameLens and mFrameOffsets based on the average bit rate.
+    private void computeFrameLensAndOffsets() {
         mFrameLens = new int[mNumFrames];
         mFrameOffsets = new int[mNumFrames];
-        int j;
-        int gain, value;
         int frameLens = (int)((1000 * mAvgBitRate / 8) *
                 ((float)getSamplesPerFrame() / mSampleRate));
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                value = 0;
-                for (int k=0; k<mChannels; k++) {
-                    if (mDecodedSamples.remaining() > 0) {
-                        value += java.lang.Math.abs(mDecodedSamples.get());
-                    }
-                }
-                value /= mChannels;
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            mFrameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
+        for (int i=0; i<mNumFrames; i++) {
             mFrameLens[i] = frameLens;  // totally not accurate...
             mFrameOffsets[i] = (int)(i * (1000 * mAvgBitRate / 8) *  //  = i * frameLens
                     ((float)getSamplesPerFrame() / mSampleRate));
+        }
+    }
 
-            if (mProgressListener != null)
-                mProgressListener.reportProgress((float)(i) / mNumFrames);
+    // Write everything but the samples themselves, so that the SoundFile object can be restored
+    // later on with readCached(). Used by SoundFileCache.
+    // Windowed files have no samples in the cache, only the results of their scan.
+    void writeCacheHeader(DataOutputStream out) throws java.io.IOException {
+        out.writeBoolean(mIsWindowed);
+        out.writeUTF(mFileType);
+        out.writeLong(mFileSize);
+        out.writeInt(mAvgBitRate);
+        out.writeInt(mSampleRate);
+        out.writeInt(mChannels);
+        out.writeLong(mNumSamples);
+        out.writeInt(mNumFrames);
+        for (int i=0; i<mNumFrames; i++) {
+            out.writeInt(mFrameGains[i]);
         }
-        mDecodedSamples.rewind();
-        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
+        mFrameFeatures.write(out);
+    }
+
+    // Move the decoded samples to pcmFile, which is then owned by the caller.
+    // Used by SoundFileCache. Returns false if the samples could not be moved.
+    boolean moveSamplesTo(File pcmFile) {
+        return mPcmStore != null && mPcmStore.moveTo(pcmFile);
     }
 
-    private void RecordAudio() {
+    // Restore a SoundFile object from a header written by writeCacheHeader() and the samples
+    // stored in pcmFile (unused for windowed files). Used by SoundFileCache.
+    static SoundFile readCached(File inputFile, DataInputStream in, File pcmFile)
+            throws java.io.IOException {
+        SoundFile soundFile = new SoundFile();
+        soundFile.mInputFile = inputFile;
+        soundFile.mIsWindowed = in.readBoolean();
+        // The cache entries depend on it (Cf. SoundFileCache.getKey()).
+        soundFile.mSpeechSampleRate = sSpeechSampleRate;
+        soundFile.mFileType = in.readUTF();
+        soundFile.mFileSize = in.readLong();
+        soundFile.mAvgBitRate = in.readInt();
+        soundFile.mSampleRate = in.readInt();
+        soundFile.mChannels = in.readInt();
+        soundFile.mNumSamples = in.readLong();
+        soundFile.mNumFrames = in.readInt();
+        soundFile.mFrameGains = new int[soundFile.mNumFrames];
+        for (int i=0; i<soundFile.mNumFrames; i++) {
+            soundFile.mFrameGains[i] = in.readInt();
+        }
+        soundFile.mFrameFeatures = FrameFeatures.read(in);
+        if (soundFile.mIsWindowed) {
+            soundFile.computeFrameLensAndOffsets();
+            return soundFile;
+        }
+        soundFile.mPcmStore = PcmStore.open(pcmFile, soundFile.mChannels);
+        if (soundFile.mPcmStore.getNumBytes() !=
+                soundFile.mNumSamples * soundFile.mChannels * 2) {
+            soundFile.release();
+            throw new java.io.IOException("Truncated PCM file " + pcmFile);
+        }
+        soundFile.mDecodedSamples = soundFile.mPcmStore.finish();
+        soundFile.computeFrameLensAndOffsets();
+        return soundFile;
+    }
+
+    private void RecordAudio() throws java.io.IOException {
         if (mProgressListener ==  null) {
             // A progress listener is mandatory here, as it will let us know when to stop recording.
             return;
@@ -426,73 +1223,35 @@ public class SoundFile {
                 minBufferSize
         );
 
-        // Allocate memory for 20 seconds first. Reallocate later if more is needed.
-        mDecodedBytes = ByteBuffer.allocate(20 * mSampleRate * 2);
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
+        // The recorded samples are appended to a file, and mapped in memory once recording is done.
+        mPcmStore = PcmStore.create(getTempDirectory(), mChannels);
+        FrameGainAccumulator gains = new FrameGainAccumulator(
+                mChannels, getSamplesPerFrame(), 60 * mSampleRate / getSamplesPerFrame());
         audioRecord.startRecording();
         while (true) {
-            // check if mDecodedSamples can contain 1024 additional samples.
-            if (mDecodedSamples.remaining() < 1024) {
-                // Try to allocate memory for 10 additional seconds.
-                int newCapacity = mDecodedBytes.capacity() + 10 * mSampleRate * 2;
-                ByteBuffer newDecodedBytes = null;
-                try {
-                    newDecodedBytes = ByteBuffer.allocate(newCapacity);
-                } catch (OutOfMemoryError oome) {
-                    break;
-                }
-                int position = mDecodedSamples.position();
-                mDecodedBytes.rewind();
-                newDecodedBytes.put(mDecodedBytes);
-                mDecodedBytes = newDecodedBytes;
-                mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                mDecodedBytes.rewind();
-                mDecodedSamples = mDecodedBytes.asShortBuffer();
-                mDecodedSamples.position(position);
-            }
             // TODO(nfaralli): maybe use the read method that takes a direct ByteBuffer argument.
             audioRecord.read(buffer, 0, buffer.length);
-            mDecodedSamples.put(buffer);
+            mPcmStore.append(buffer, 0, buffer.length);
+            gains.add(buffer, 0, buffer.length);
             // Let the progress listener know how many seconds have been recorded.
             // The returned value tells us if we should keep recording or stop.
             if (!mProgressListener.reportProgress(
-                    (float)(mDecodedSamples.position()) / mSampleRate)) {
+                    (float)(mPcmStore.getNumBytes() / 2) / mSampleRate)) {
                 break;
             }
         }
         audioRecord.stop();
         audioRecord.release();
-        mNumSamples = mDecodedSamples.position();
-        mDecodedSamples.rewind();
-        mDecodedBytes.rewind();
+        mNumSamples = mPcmStore.getNumBytes() / 2;
+        mDecodedSamples = mPcmStore.finish();
         mAvgBitRate = mSampleRate * 16 / 1000;
 
         // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
-        }
-        mFrameGains = new int[mNumFrames];
+        mFrameGains = gains.finish();
+        mFrameFeatures = gains.getFeatures();
+        mNumFrames = mFrameGains.length;
         mFrameLens = null;  // not needed for recorded audio
         mFrameOffsets = null;  // not needed for recorded audio
-        int i, j;
-        int gain, value;
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                if (mDecodedSamples.remaining() > 0) {
-                    value = java.lang.Math.abs(mDecodedSamples.get());
-                } else {
-                    value = 0;
-                }
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            mFrameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
-        }
-        mDecodedSamples.rewind();
         // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
@@ -506,8 +1265,8 @@ public class SoundFile {
 
     public void WriteFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
-        int numSamples = (int)((endTime - startTime) * mSampleRate);
+        long startSample = (long)((double)startTime * mSampleRate);
+        long numSamples = (long)((double)(endTime - startTime) * mSampleRate);
         // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo.
         int numChannels = (mChannels == 1) ? 2 : mChannels;
 
@@ -530,16 +1289,16 @@ public class SoundFile {
 
         int frame_size = 1024;  // number of samples per frame per channel for an mp4 (AAC) stream.
         byte buffer[] = new byte[frame_size * numChannels * 2];  // a sample is coded with a short.
-        mDecodedBytes.position(startOffset);
+        long readPosition = startSample;
         numSamples += (2 * frame_size);  // Adding 2 frames, Cf. priming frames for AAC.
-        int tot_num_frames = 1 + (numSamples / frame_size);  // first AAC frame = 2 bytes
+        int tot_num_frames = 1 + (int)(numSamples / frame_size);  // first AAC frame = 2 bytes
         if (numSamples % frame_size != 0) {
             tot_num_frames++;
         }
         int[] frame_sizes = new int[tot_num_frames];
         int num_out_frames = 0;
         int num_frames=0;
-        int num_samples_left = numSamples;
+        long num_samples_left = numSamples;
         int encodedSamplesSize = 0;  // size of the output buffer containing the encoded samples.
         byte[] encodedSamples = null;
         while (true) {
@@ -559,13 +1318,10 @@ public class SoundFile {
                     }
                     // bufferSize is a hack to create a stereo file from a mono stream.
                     int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (mDecodedBytes.remaining() < bufferSize) {
-                        for (int i=mDecodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                        }
-                        mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-                    } else {
-                        mDecodedBytes.get(buffer, 0, bufferSize);
+                    int numRead = mDecodedSamples.get(readPosition, buffer, 0, frame_size);
+                    readPosition += numRead;
+                    for (int i=numRead * 2 * mChannels; i < bufferSize; i++) {
+                        buffer[i] = 0;  // pad with extra 0s to make a full frame.
                     }
                     if (mChannels == 1) {
                         for (int i=bufferSize - 1; i >= 1; i -= 2) {
@@ -679,8 +1435,8 @@ public class SoundFile {
 
     public void WriteWAVFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
-        int numSamples = (int)((endTime - startTime) * mSampleRate);
+        long startSample = (long)((double)startTime * mSampleRate);
+        long numSamples = (long)((double)(endTime - startTime) * mSampleRate);
 
         // Start by writing the RIFF header.
         FileOutputStream outputStream = new FileOutputStream(outputFile);
@@ -688,38 +1444,21 @@ public class SoundFile {
 
         // Write the samples to the file, 1024 at a time.
         byte buffer[] = new byte[1024 * mChannels * 2];  // Each sample is coded with a short.
-        mDecodedBytes.position(startOffset);
-        int numBytesLeft = numSamples * mChannels * 2;
-        while (numBytesLeft >= buffer.length) {
-            if (mDecodedBytes.remaining() < buffer.length) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < buffer.length; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer);
-            }
-            if (mChannels == 2) {
-                swapLeftRightChannels(buffer);
-            }
-            outputStream.write(buffer);
-            numBytesLeft -= buffer.length;
-        }
-        if (numBytesLeft > 0) {
-            if (mDecodedBytes.remaining() < numBytesLeft) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < numBytesLeft; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer, 0, numBytesLeft);
+        long position = startSample;
+        long numSamplesLeft = numSamples;
+        while (numSamplesLeft > 0) {
+            int size = (int)Math.min(1024, numSamplesLeft);
+            int numRead = mDecodedSamples.get(position, buffer, 0, size);
+            // This should not happen.
+            for (int i = numRead * mChannels * 2; i < size * mChannels * 2; i++) {
+                buffer[i] = 0;  // pad with extra 0s to make a full frame.
             }
             if (mChannels == 2) {
                 swapLeftRightChannels(buffer);
             }
-            outputStream.write(buffer, 0, numBytesLeft);
+            outputStream.write(buffer, 0, size * mChannels * 2);
+            position += size;
+            numSamplesLeft -= size;
         }
         outputStream.close();
     }
@@ -750,15 +1489,14 @@ public class SoundFile {
         // Start dumping the samples.
         BufferedWriter writer = null;
         float presentationTime = 0;
-        mDecodedSamples.rewind();
         String row;
         try {
             writer = new BufferedWriter(new FileWriter(outFile));
-            for (int sampleIndex = 0; sampleIndex < mNumSamples; sampleIndex++) {
+            for (long sampleIndex = 0; sampleIndex < mNumSamples; sampleIndex++) {
                 presentationTime = (float)(sampleIndex) / mSampleRate;
                 row = Float.toString(presentationTime);
                 for (int channelIndex = 0; channelIndex < mChannels; channelIndex++) {
-                    row += "\t" + mDecodedSamples.get();
+                    row += "\t" + mDecodedSamples.get(sampleIndex, channelIndex);
                 }
                 row += "\n";
                 writer.write(row);
@@ -767,14 +1505,13 @@ public class SoundFile {
             Log.w("Ringdroid", "Failed to create the sample TSV file.");
             Log.w("Ringdroid", getStackTrace(e));
         }
-        // We are done here. Close the file and rewind the buffer.
+        // We are done here. Close the file.
         try {
             writer.close();
         } catch (Exception e) {
             Log.w("Ringdroid", "Failed to close sample TSV file.");
             Log.w("Ringdroid", getStackTrace(e));
         }
-        mDecodedSamples.rewind();
     }
 
     // Helper method (samples will be dumped in media/audio/debug/samples.tsv).
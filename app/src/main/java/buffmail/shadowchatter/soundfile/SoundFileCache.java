@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+/**
+ * Persistent cache of decoded sound files.
+ *
+ * Each entry is made of two files named after the fingerprint of the input file: a ".pcm" file
+ * holding the decoded samples (memory-mapped when the entry is opened), and a ".meta" file
+ * holding everything else (sample rate, channels, frame gains...). Opening a file that is
+ * already in the cache then skips the decoding entirely. Windowed files (Cf.
+ * SoundFile.createWindowed()) only have a ".meta" file, which spares them the scan.
+ *
+ * Entries are evicted in least recently used order (based on the last modification time of the
+ * ".meta" files, which is updated on every hit) once the cache gets bigger than its budget.
+ */
+public class SoundFileCache {
+    private static final String TAG = "SoundFileCache";
+    private static final int MAGIC = 0x53434348;  // "SCCH"
+    private static final int VERSION = 4;
+    private static final String META_EXTENSION = ".meta";
+    private static final String PCM_EXTENSION = ".pcm";
+    // Checkpoints of interrupted decodings are evicted like the other entries.
+    private static final String CHECKPOINT_SUFFIX = ".partial";
+    private static final int NUM_FINGERPRINT_BLOCKS = 16;
+    private static final int FINGERPRINT_BLOCK_SIZE = 4096;
+
+    private File mDirectory;
+    private long mMaxSizeBytes;
+
+    public SoundFileCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mDirectory.mkdirs();
+    }
+
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+        evict(null);
+    }
+
+    // Same as SoundFile.create(), but return the cached SoundFile object if the file has already
+    // been decoded, and add the decoded file to the cache otherwise.
+    public SoundFile open(String fileName, SoundFile.ProgressListener progressListener)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, SoundFile.InvalidInputException {
+        return open(fileName, progressListener, null);
+    }
+
+    // Same as above, reporting the decoded frames to decodeListener if the file is not cached.
+    // If the decoding is canceled by progressListener, what has been decoded so far is kept, and
+    // the next call for the same file resumes from there.
+    public SoundFile open(String fileName,
+                          SoundFile.ProgressListener progressListener,
+                          SoundFile.DecodeListener decodeListener)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, SoundFile.InvalidInputException {
+        File f = new File(fileName);
+        if (!f.exists()) {
+            throw new java.io.FileNotFoundException(fileName);
+        }
+        String key = getKey(f);
+        SoundFile soundFile = load(f, key);
+        if (soundFile != null && !soundFile.isWindowed()) {
+            return soundFile;
+        }
+        // A windowed entry has no samples: it is replaced by the decoded file.
+        soundFile = SoundFile.create(fileName, progressListener, decodeListener,
+                getCheckpoint(key));
+        if (soundFile != null) {
+            store(key, soundFile);
+        }
+        evict(key);
+        return soundFile;
+    }
+
+    // Same as SoundFile.createWindowed(), but return the cached SoundFile object if the file has
+    // already been scanned (or decoded), and add the results of the scan to the cache otherwise.
+    // If the scan is canceled by progressListener, the next call for the same file resumes it.
+    public SoundFile openWindowed(String fileName, SoundFile.ProgressListener progressListener)
+            throws java.io.FileNotFoundException,
+            java.io.IOException, SoundFile.InvalidInputException {
+        File f = new File(fileName);
+        if (!f.exists()) {
+            throw new java.io.FileNotFoundException(fileName);
+        }
+        String key = getKey(f);
+        SoundFile soundFile = load(f, key);
+        if (soundFile != null) {
+            return soundFile;
+        }
+        soundFile = SoundFile.createWindowed(fileName, progressListener, getCheckpoint(key));
+        if (soundFile != null) {
+            store(key, soundFile);
+        }
+        evict(key);
+        return soundFile;
+    }
+
+    // Return a cheap fingerprint of the content of the given file: a hash of its path, size, last
+    // modification time and of a few blocks sampled evenly across the file. It doesn't depend on
+    // how the file is decoded (Cf. getKey()), e.g. to name records about the file itself.
+    public static String getFingerprint(File f) throws java.io.IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new java.io.IOException(e.toString());
+        }
+        long length = f.length();
+        digest.update(f.getAbsolutePath().getBytes("UTF-8"));
+        digest.update(Long.toString(length).getBytes("UTF-8"));
+        digest.update(Long.toString(f.lastModified()).getBytes("UTF-8"));
+        byte[] block = new byte[FINGERPRINT_BLOCK_SIZE];
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            for (int i=0; i<NUM_FINGERPRINT_BLOCKS; i++) {
+                long offset = (length - block.length) * i / (NUM_FINGERPRINT_BLOCKS - 1);
+                if (offset < 0) {
+                    offset = 0;
+                }
+                file.seek(offset);
+                int size = file.read(block);
+                if (size > 0) {
+                    digest.update(block, 0, size);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder();
+        for (byte b : hash) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    // Return the key of the cache entry of the given file. Files decoded in speech mode are
+    // stored in a different format, so the entry also depends on the speech sample rate.
+    private static String getKey(File f) throws java.io.IOException {
+        return getFingerprint(f) + "-" + SoundFile.getSpeechSampleRate();
+    }
+
+    private DecodeCheckpoint getCheckpoint(String key) {
+        return new DecodeCheckpoint(
+                new File(mDirectory, key + CHECKPOINT_SUFFIX + PCM_EXTENSION),
+                new File(mDirectory, key + CHECKPOINT_SUFFIX + META_EXTENSION));
+    }
+
+    // Return the cached SoundFile for the given key, or null if there is no valid entry.
+    private SoundFile load(File inputFile, String key) {
+        File metaFile = new File(mDirectory, key + META_EXTENSION);
+        File pcmFile = new File(mDirectory, key + PCM_EXTENSION);
+        if (!metaFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(metaFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                        !key.equals(in.readUTF())) {
+                    throw new java.io.IOException("Invalid cache entry " + metaFile);
+                }
+                SoundFile soundFile = SoundFile.readCached(inputFile, in, pcmFile);
+                metaFile.setLastModified(System.currentTimeMillis());
+                return soundFile;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping cache entry " + key + ": " + e);
+            metaFile.delete();
+            pcmFile.delete();
+            return null;
+        }
+    }
+
+    // Add the decoded samples and the metadata of soundFile to the cache.
+    private void store(String key, SoundFile soundFile) {
+        File metaFile = new File(mDirectory, key + META_EXTENSION);
+        File pcmFile = new File(mDirectory, key + PCM_EXTENSION);
+        File tmpFile = new File(mDirectory, key + META_EXTENSION + ".tmp");
+        if (soundFile.isWindowed()) {
+            pcmFile.delete();  // Of a previous entry, if any.
+        } else if (!soundFile.moveSamplesTo(pcmFile)) {
+            return;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                soundFile.writeCacheHeader(out);
+            } finally {
+                out.close();
+            }
+            // The entry only becomes visible once the metadata has been completely written.
+            if (!tmpFile.renameTo(metaFile)) {
+                throw new java.io.IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache " + key + ": " + e);
+            tmpFile.delete();
+            pcmFile.delete();  // still mapped by soundFile, so its samples remain valid.
+        }
+    }
+
+    // Delete the least recently used entries until the cache fits in its budget.
+    // The entry named keep (if any) is never evicted.
+    private void evict(String keep) {
+        File[] metaFiles = mDirectory.listFiles();
+        if (metaFiles == null) {
+            return;
+        }
+        long totalSize = 0;
+        int numMetaFiles = 0;
+        for (File f : metaFiles) {
+            String name = f.getName();
+            if (name.endsWith(META_EXTENSION)) {
+                metaFiles[numMetaFiles++] = f;
+            } else if (name.endsWith(PCM_EXTENSION) && !name.startsWith(keep + ".") &&
+                    !new File(mDirectory, name.replace(PCM_EXTENSION, META_EXTENSION)).exists()) {
+                // Leftover of an entry which could not be completely written.
+                f.delete();
+                continue;
+            }
+            totalSize += f.length();
+        }
+        metaFiles = Arrays.copyOf(metaFiles, numMetaFiles);
+        Arrays.sort(metaFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long delta = a.lastModified() - b.lastModified();
+                return (delta < 0) ? -1 : ((delta > 0) ? 1 : 0);
+            }
+        });
+        for (File metaFile : metaFiles) {
+            if (totalSize <= mMaxSizeBytes) {
+                break;
+            }
+            String name = metaFile.getName();
+            String key = name.substring(0, name.length() - META_EXTENSION.length());
+            if (key.equals(keep)) {
+                continue;
+            }
+            File pcmFile = new File(mDirectory, key + PCM_EXTENSION);
+            totalSize -= metaFile.length() + pcmFile.length();
+            metaFile.delete();
+            pcmFile.delete();
+        }
+    }
+}
@@ -20,10 +20,10 @@ public class WAVHeader {
     private byte[] mHeader;          // the complete header.
     private int mSampleRate;         // sampling frequency in Hz (e.g. 44100).
     private int mChannels;           // number of channels.
-    private int mNumSamples;         // total number of samples per channel.
+    private long mNumSamples;        // total number of samples per channel.
     private int mNumBytesPerSample;  // number of bytes per sample, all channels included.
 
-    public WAVHeader(int sampleRate, int numChannels, int numSamples) {
+    public WAVHeader(int sampleRate, int numChannels, long numSamples) {
         mSampleRate = sampleRate;
         mChannels = numChannels;
         mNumSamples = numSamples;
@@ -36,7 +36,7 @@ public class WAVHeader {
         return mHeader;
     }
 
-    public static byte[] getWAVHeader(int sampleRate, int numChannels, int numSamples) {
+    public static byte[] getWAVHeader(int sampleRate, int numChannels, long numSamples) {
         return new WAVHeader(sampleRate, numChannels, numSamples).mHeader;
     }
 
@@ -66,12 +66,12 @@ public class WAVHeader {
     private void setHeader() {
         byte[] header = new byte[46];
         int offset = 0;
-        int size;
+        long size;
 
         // set the RIFF chunk
         System.arraycopy(new byte[] {'R', 'I', 'F', 'F'}, 0, header, offset, 4);
         offset += 4;
-        size = 36 + mNumSamples * mNumBytesPerSample;
+        size = getChunkSize(36 + mNumSamples * mNumBytesPerSample);
         header[offset++] = (byte)(size & 0xFF);
         header[offset++] = (byte)((size >> 8) & 0xFF);
         header[offset++] = (byte)((size >> 16) & 0xFF);
@@ -105,7 +105,7 @@ public class WAVHeader {
         // set the beginning of the data chunk
         System.arraycopy(new byte[] {'d', 'a', 't', 'a'}, 0, header, offset, 4);
         offset += 4;
-        size = mNumSamples * mNumBytesPerSample;
+        size = getChunkSize(mNumSamples * mNumBytesPerSample);
         header[offset++] = (byte)(size & 0xFF);
         header[offset++] = (byte)((size >> 8) & 0xFF);
         header[offset++] = (byte)((size >> 16) & 0xFF);
@@ -113,4 +113,10 @@ public class WAVHeader {
 
         mHeader = header;
     }
+
+    // Chunk sizes are 32 bits values. Bigger chunks get the maximum value, and readers should
+    // rely on the file size instead.
+    private static long getChunkSize(long size) {
+        return Math.min(size, 0xFFFFFFFFL);
+    }
 }
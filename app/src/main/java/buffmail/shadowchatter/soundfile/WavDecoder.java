@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package buffmail.shadowchatter.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Decoder for uncompressed 16 bits PCM WAV files (the format written by WAVHeader).
+ *
+ * Nothing is actually decoded: the data chunk of the file is memory-mapped and used as is,
+ * so a WAV file opens without any codec round trip and without copying its samples.
+ */
+class WavDecoder implements AudioDecoder {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    // Format of a WAV file, as described by its fmt and data chunks.
+    static class Format {
+        int sampleRate;
+        int channels;
+        long dataOffset;  // offset of the first sample in the file.
+        long dataSize;    // size of the samples, in bytes.
+    }
+
+    @Override
+    public boolean canDecode(File file, byte[] header) {
+        if (header.length < 12 ||
+                header[0] != 'R' || header[1] != 'I' || header[2] != 'F' || header[3] != 'F' ||
+                header[8] != 'W' || header[9] != 'A' || header[10] != 'V' || header[11] != 'E') {
+            return false;
+        }
+        // Only 16 bits PCM can be mapped directly. Let MediaCodec handle the other formats.
+        try {
+            return readFormat(file) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void decode(File file, Output output)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        Format format = readFormat(file);
+        if (format == null) {
+            throw new SoundFile.InvalidInputException("Unsupported WAV file " + file);
+        }
+        long numSamples = format.dataSize / (2 * format.channels);
+        output.setFormat(format.sampleRate, format.channels, numSamples);
+        output.setSamples(file, format.dataOffset, numSamples * 2 * format.channels);
+    }
+
+    @Override
+    public void decodeRange(File file, Output output, long startUs, long endUs)
+            throws java.io.IOException, SoundFile.InvalidInputException {
+        Format format = readFormat(file);
+        if (format == null) {
+            throw new SoundFile.InvalidInputException("Unsupported WAV file " + file);
+        }
+        long totalNumSamples = format.dataSize / (2 * format.channels);
+        long startSample = Math.min(
+                Math.round(startUs * (double)format.sampleRate / 1000000), totalNumSamples);
+        long endSample = Math.min(
+                Math.round(endUs * (double)format.sampleRate / 1000000), totalNumSamples);
+        long numSamples = Math.max(endSample - startSample, 0);
+        output.setFormat(format.sampleRate, format.channels, numSamples);
+        output.setSamples(file, format.dataOffset + startSample * 2 * format.channels,
+                numSamples * 2 * format.channels);
+    }
+
+    @Override
+    public long[] getSplitPoints(File file, int maxRanges) {
+        return null;  // Nothing to decode.
+    }
+
+    // Parse the RIFF chunks of file. Return null if it is not a 16 bits PCM WAV file.
+    static Format readFormat(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            long fileSize = input.length();
+            byte[] chunkHeader = new byte[8];
+            byte[] fmt = null;
+            long offset = 12;  // skip "RIFF" <size> "WAVE".
+            while (offset + 8 <= fileSize) {
+                input.seek(offset);
+                input.readFully(chunkHeader);
+                long chunkSize = readInt(chunkHeader, 4) & 0xFFFFFFFFL;
+                offset += 8;
+                if (isChunk(chunkHeader, "fmt ")) {
+                    if (chunkSize < 16 || chunkSize > 1024) {
+                        return null;
+                    }
+                    fmt = new byte[(int)chunkSize];
+                    input.readFully(fmt);
+                } else if (isChunk(chunkHeader, "data")) {
+                    if (fmt == null) {
+                        return null;  // the fmt chunk must come first.
+                    }
+                    int formatTag = readShort(fmt, 0);
+                    if (formatTag == FORMAT_EXTENSIBLE && fmt.length >= 26) {
+                        // The actual format is the first 2 bytes of the sub-format GUID.
+                        formatTag = readShort(fmt, 24);
+                    }
+                    Format format = new Format();
+                    format.channels = readShort(fmt, 2);
+                    format.sampleRate = readInt(fmt, 4);
+                    int bitsPerSample = readShort(fmt, 14);
+                    if (formatTag != FORMAT_PCM || bitsPerSample != 16 ||
+                            format.channels < 1 || format.channels > 2 ||
+                            format.sampleRate <= 0) {
+                        return null;
+                    }
+                    format.dataOffset = offset;
+                    // Streamed (or bigger than 4GB) files may have a bogus data size. Trust the
+                    // file size instead.
+                    if (chunkSize == 0xFFFFFFFFL || chunkSize > fileSize - offset) {
+                        chunkSize = fileSize - offset;
+                    }
+                    format.dataSize = chunkSize;
+                    return format;
+                }
+                offset += chunkSize + (chunkSize & 1);  // chunks are padded to an even size.
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static boolean isChunk(byte[] chunkHeader, String id) {
+        for (int i=0; i<4; i++) {
+            if (chunkHeader[i] != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8) |
+                ((buffer[offset + 2] & 0xFF) << 16) | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package buffmail.shadowchatter.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that FrameGainAccumulator computes the same gains as the per-sample ShortBuffer loop it
+ * replaced. Cf. FrameGainAccumulatorBenchmark for their costs.
+ */
+public class FrameGainAccumulatorTest {
+    static final int SAMPLE_RATE = 44100;
+    static final int SAMPLES_PER_FRAME = 1024;
+
+    /**
+     * The frame gain loop used before FrameGainAccumulator, as it was in SoundFile.
+     */
+    static class OldFrameGains {
+        private final int mChannels;
+        private int[] mFrameGains = new int[16];
+        private int mNumFrames;
+        private int mCurrentFrameGain = -1;
+        private int mCurrentFrameNumSamples;
+
+        OldFrameGains(int channels) {
+            mChannels = channels;
+        }
+
+        void add(byte[] data, int length) {
+            ByteBuffer decodedBytes = ByteBuffer.wrap(data, 0, length);
+            decodedBytes.order(ByteOrder.LITTLE_ENDIAN);
+            addFrameGains(decodedBytes.asShortBuffer());
+        }
+
+        int[] finish() {
+            if (mCurrentFrameNumSamples > 0) {
+                // The last frame is incomplete: it is considered to be padded with 0s.
+                mCurrentFrameGain = Math.max(mCurrentFrameGain, 0);
+                endFrame();
+            }
+            return Arrays.copyOf(mFrameGains, mNumFrames);
+        }
+
+        private void addFrameGains(ShortBuffer samples) {
+            int value;
+            while (samples.remaining() >= mChannels) {
+                value = 0;
+                for (int k=0; k<mChannels; k++) {
+                    value += java.lang.Math.abs(samples.get());
+                }
+                value /= mChannels;
+                if (mCurrentFrameGain < value) {
+                    mCurrentFrameGain = value;
+                }
+                if (++mCurrentFrameNumSamples == SAMPLES_PER_FRAME) {
+                    endFrame();
+                }
+            }
+        }
+
+        private void endFrame() {
+            if (mNumFrames == mFrameGains.length) {
+                mFrameGains = Arrays.copyOf(mFrameGains, mFrameGains.length * 2 + 1);
+            }
+            mFrameGains[mNumFrames++] = (int)Math.sqrt(mCurrentFrameGain);
+            mCurrentFrameGain = -1;
+            mCurrentFrameNumSamples = 0;
+        }
+    }
+
+    @Test
+    public void gainsMatchOldLoop() {
+        for (int channels = 1; channels <= 3; channels++) {
+            // Buffers of various sizes, so that frames span several of them, and an incomplete
+            // last frame.
+            byte[] data = createSignal(new Random(channels), channels, 10 * SAMPLE_RATE + 123);
+            int bytesPerSample = 2 * channels;
+            OldFrameGains oldGains = new OldFrameGains(channels);
+            FrameGainAccumulator gains = new FrameGainAccumulator(channels, SAMPLES_PER_FRAME, 0);
+            Random sizes = new Random(0);
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min((1 + sizes.nextInt(3000)) * bytesPerSample,
+                        data.length - offset);
+                byte[] buffer = Arrays.copyOfRange(data, offset, offset + length);
+                oldGains.add(buffer, length);
+                gains.add(buffer, 0, length);
+                offset += length;
+            }
+            assertArrayEquals("channels: " + channels, oldGains.finish(), gains.finish());
+        }
+    }
+
+    @Test
+    public void extremeSamplesMatchOldLoop() {
+        short[] values = {Short.MIN_VALUE, Short.MAX_VALUE, -1, 0, 1, Short.MIN_VALUE + 1};
+        for (int channels = 1; channels <= 2; channels++) {
+            byte[] data = new byte[SAMPLES_PER_FRAME * values.length * 2 * channels];
+            ByteBuffer bytes = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0; i<data.length / 2; i++) {
+                bytes.putShort(values[i / (SAMPLES_PER_FRAME * channels)]);
+            }
+            OldFrameGains oldGains = new OldFrameGains(channels);
+            oldGains.add(data, data.length);
+            FrameGainAccumulator gains = new FrameGainAccumulator(channels, SAMPLES_PER_FRAME, 0);
+            gains.add(data, 0, data.length);
+            assertArrayEquals("channels: " + channels, oldGains.finish(), gains.finish());
+        }
+    }
+
+    // Little endian interleaved samples looking vaguely like speech: noise and tones whose
+    // amplitude varies over time, with silences.
+    static byte[] createSignal(Random random, int channels, int numSamples) {
+        byte[] data = new byte[numSamples * 2 * channels];
+        ByteBuffer bytes = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        double amplitude = 0;
+        for (int i=0; i<numSamples; i++) {
+            if (i % 2048 == 0) {
+                amplitude = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 20000;
+            }
+            for (int k=0; k<channels; k++) {
+                double value = amplitude * (0.5 * Math.sin(i * 0.05 * (k + 1)) +
+                        0.5 * random.nextGaussian());
+                bytes.putShort((short)Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, Math.round(value))));
+            }
+        }
+        return data;
+    }
+}